@@ -0,0 +1,156 @@
+
+package sc.fiji.maskflow;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.scijava.Context;
+import org.scijava.io.location.FileLocation;
+import org.tensorflow.Session;
+import org.tensorflow.Tensor;
+
+import net.imagej.ImageJ;
+import net.imagej.tensorflow.Tensors;
+import net.imglib2.img.Img;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import sc.fiji.maskflow.internal.Detection;
+import sc.fiji.maskflow.internal.MaskRCNNDetector;
+import sc.fiji.maskflow.internal.MaskRCNNPostprocessImage;
+import sc.fiji.maskflow.internal.MaskRCNNPreprocessImage;
+import sc.fiji.maskflow.internal.ModelConfig;
+import sc.fiji.maskflow.internal.TensorScope;
+import sc.fiji.maskflow.utils.TensorUtils;
+
+/**
+ * The detection stages and the building of their results, on a
+ * {@link SyntheticModel} and a {@link SyntheticStack}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class DetectionBenchmark {
+
+	@Param({ "256" })
+	public int size;
+
+	@Param({ "10" })
+	public int frames;
+
+	@Param({ "20" })
+	public int objects;
+
+	private File directory;
+	private Context context;
+	private MaskflowEngine engine;
+	private ModelConfig config;
+
+	private Session preprocessing;
+	private Session detection;
+	private Session postprocessing;
+
+	// Inputs of each stage, computed once.
+	private Tensor<Float> image;
+	private Map<String, Tensor<?>> preprocessed;
+	private Map<String, Tensor<?>> detected;
+
+	private List<Detection> detections;
+
+	@Setup
+	public void setUp() throws IOException {
+		// Models are unpacked into $IMAGEJ_DIR/models.
+		directory = Files.createTempDirectory("maskflow-benchmark").toFile();
+		System.setProperty("imagej.dir", directory.getPath());
+
+		FileLocation location = new FileLocation(new SyntheticModel(size, objects).write(new File(
+			directory, "model.zip")));
+		String modelName = "synthetic-" + size + "-" + objects;
+
+		context = new ImageJ().context();
+		engine = new MaskflowEngine(context, location, modelName);
+		config = engine.getConfig();
+
+		ModelService modelService = context.service(ModelService.class);
+		preprocessing = modelService.getSession(location, modelName,
+			MaskRCNNPreprocessImage.MODEL_FILENAME);
+		detection = modelService.getSession(location, modelName, MaskRCNNDetector.MODEL_FILENAME);
+		postprocessing = modelService.getSession(location, modelName,
+			MaskRCNNPostprocessImage.MODEL_FILENAME);
+
+		SyntheticStack stack = new SyntheticStack(size, frames, objects);
+		Img<FloatType> frame = stack.createImage();
+		image = Tensors.tensorFloat(Views.hyperSlice(frame, 2, 0));
+		preprocessed = MaskRCNNPreprocessImage.preprocess(preprocessing, config, image);
+		detected = MaskRCNNDetector.detect(detection, preprocessed.get("moldedImage"), preprocessed
+			.get("imageMetadata"), preprocessed.get("anchors"), false);
+		detections = stack.createDetections();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		image.close();
+		TensorScope.closeAll(preprocessed.values());
+		TensorScope.closeAll(detected.values());
+		context.dispose();
+		FileUtils.deleteDirectory(directory);
+	}
+
+	@Benchmark
+	public void preprocess() {
+		TensorScope.closeAll(MaskRCNNPreprocessImage.preprocess(preprocessing, config, image)
+			.values());
+	}
+
+	@Benchmark
+	public void detect() {
+		TensorScope.closeAll(MaskRCNNDetector.detect(detection, preprocessed.get("moldedImage"),
+			preprocessed.get("imageMetadata"), preprocessed.get("anchors"), false).values());
+	}
+
+	@Benchmark
+	public void postprocess() {
+		TensorScope.closeAll(MaskRCNNPostprocessImage.postprocess(postprocessing, detected.get(
+			"detections"), detected.get("mrcnn_mask"), preprocessed.get("originalImageShape"),
+			preprocessed.get("imageShape"), preprocessed.get("windows")).values());
+	}
+
+	@Benchmark
+	public void expandDimension() {
+		TensorUtils.expandDimension(preprocessed.get("moldedImage"), 0).close();
+	}
+
+	@Benchmark
+	public DetectionTable createTable() {
+		return engine.createTable(detections);
+	}
+
+	@Benchmark
+	public long createMasks() {
+		// Masks are computed on access so every pixel is read once.
+		long area = 0;
+		for (BitType pixel : engine.createMasks(detections, size, size)) {
+			if (pixel.get()) area++;
+		}
+		return area;
+	}
+
+}
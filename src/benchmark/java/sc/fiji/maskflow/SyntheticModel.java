@@ -0,0 +1,242 @@
+
+package sc.fiji.maskflow;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.tensorflow.DataType;
+import org.tensorflow.Graph;
+import org.tensorflow.OperationBuilder;
+import org.tensorflow.Output;
+import org.tensorflow.Tensor;
+
+import sc.fiji.maskflow.internal.MaskRCNNDetector;
+import sc.fiji.maskflow.internal.MaskRCNNPostprocessImage;
+import sc.fiji.maskflow.internal.MaskRCNNPreprocessImage;
+
+/**
+ * A tiny model with the inputs and outputs of a real one, built locally so the
+ * benchmarks run offline.
+ * <p>
+ * The preprocessing graph subtracts the mean pixel, the detection graph runs a
+ * single convolution on the molded image and the postprocessing graph resizes
+ * the masks to the frame. The detected objects are the same in every frame.
+ */
+class SyntheticModel {
+
+	private static final int MASK_SIZE = 28;
+	private static final int NUM_CLASSES = 2;
+	private static final int[] BACKBONE_STRIDES = { 4, 8, 16, 32, 64 };
+	private static final int NUM_RATIOS = 3;
+
+	private final int size;
+	private final int objects;
+	private final Random random = new Random(42);
+
+	// Bounding boxes of the objects as (y1, x1, y2, x2).
+	private final int[][] boxes;
+
+	/**
+	 * @param size Width and height of the frames.
+	 * @param objects Number of objects detected in every frame.
+	 */
+	SyntheticModel(int size, int objects) {
+		this.size = size;
+		this.objects = objects;
+		this.boxes = new int[objects][];
+
+		// Objects on a grid.
+		int columns = (int) Math.ceil(Math.sqrt(objects));
+		int spacing = size / (columns + 1);
+		int radius = Math.max(spacing / 4, 1);
+		for (int i = 0; i < objects; i++) {
+			int x = spacing * (1 + i % columns);
+			int y = spacing * (1 + i / columns);
+			boxes[i] = new int[] { y - radius, x - radius, y + radius + 1, x + radius + 1 };
+		}
+	}
+
+	/** Write the model as a ZIP file the model service can load. */
+	File write(File file) throws IOException {
+		try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file))) {
+			zos.putNextEntry(new ZipEntry("config.yml"));
+			zos.write(this.createConfig().getBytes(StandardCharsets.UTF_8));
+			zos.putNextEntry(new ZipEntry(MaskRCNNPreprocessImage.MODEL_FILENAME));
+			zos.write(this.createPreprocessingGraph());
+			zos.putNextEntry(new ZipEntry(MaskRCNNDetector.MODEL_FILENAME));
+			zos.write(this.createDetectionGraph());
+			zos.putNextEntry(new ZipEntry(MaskRCNNPostprocessImage.MODEL_FILENAME));
+			zos.write(this.createPostprocessingGraph());
+		}
+		return file;
+	}
+
+	String createConfig() {
+		return "CLASS_NAMES: [BG, object]\n" + //
+			"IMAGE_MIN_DIM: " + size + "\n" + //
+			"IMAGE_MAX_DIM: " + size + "\n" + //
+			"IMAGE_MIN_SCALE: 0\n" + //
+			"MEAN_PIXEL: [123.7, 116.8, 103.9]\n" + //
+			"BACKBONE_STRIDES: [4, 8, 16, 32, 64]\n" + //
+			"RPN_ANCHOR_SCALES: [8, 16, 32, 64, 128]\n" + //
+			"RPN_ANCHOR_RATIOS: [0.5, 1, 2]\n" + //
+			"RPN_ANCHOR_STRIDE: 1\n";
+	}
+
+	byte[] createPreprocessingGraph() {
+		try (Graph g = new Graph()) {
+			Output<?> image = placeholder(g, "input_image", DataType.FLOAT);
+			Output<?> meanPixels = placeholder(g, "mean_pixels", DataType.FLOAT);
+			placeholder(g, "original_image_height", DataType.INT32);
+			placeholder(g, "original_image_width", DataType.INT32);
+			placeholder(g, "class_ids", DataType.INT32);
+			placeholder(g, "image_min_dimension", DataType.INT32);
+			placeholder(g, "image_max_dimension", DataType.INT32);
+			placeholder(g, "minimum_scale", DataType.FLOAT);
+			placeholder(g, "backbone_strides", DataType.INT32);
+			placeholder(g, "rpn_anchor_scales", DataType.INT32);
+			placeholder(g, "rpn_anchor_ratios", DataType.FLOAT);
+			placeholder(g, "rpn_anchor_stride", DataType.INT32);
+
+			// [H, W, 1] - [3] gives the [H, W, 3] molded image.
+			op(g, "Sub", "molded_image", image, meanPixels);
+
+			// id, original shape, molded shape, window, scale and active classes.
+			float[] metadata = new float[12 + NUM_CLASSES];
+			float[] values = { 0, size, size, 1, size, size, 3, 0, 0, size, size, 1 };
+			System.arraycopy(values, 0, metadata, 0, values.length);
+			constant(g, "image_metadata", metadata);
+			constant(g, "window", new int[] { 0, 0, size, size });
+
+			int nAnchors = 0;
+			for (int stride : BACKBONE_STRIDES) {
+				int n = (size + stride - 1) / stride;
+				nAnchors += n * n * NUM_RATIOS;
+			}
+			constant(g, "anchors", this.randomArray(nAnchors, 4));
+
+			return g.toGraphDef();
+		}
+	}
+
+	byte[] createDetectionGraph() {
+		try (Graph g = new Graph()) {
+			Output<?> image = placeholder(g, "input_image", DataType.FLOAT);
+			placeholder(g, "input_image_meta", DataType.FLOAT);
+			placeholder(g, "input_anchors", DataType.FLOAT);
+
+			// A convolution stands for the backbone. Its result is added as zero to
+			// the outputs so it is not pruned.
+			Output<?> kernel = constant(g, "kernel", this.randomKernel(3, 3, 3, 8));
+			Output<?> features = g.opBuilder("Conv2D", "features").addInput(image).addInput(kernel)
+				.setAttr("strides", new long[] { 1, 1, 1, 1 }).setAttr("padding", "SAME").build()
+				.output(0);
+			Output<?> mean = op(g, "Mean", "features_mean", features, constant(g, "features_axes",
+				new int[] { 0, 1, 2, 3 }));
+			Output<?> zero = op(g, "Mul", "zero", mean, constant(g, "zero_factor", 0f));
+
+			float[][][] detections = new float[1][objects][];
+			float[][][][][] masks = new float[1][objects][MASK_SIZE][MASK_SIZE][NUM_CLASSES];
+			for (int i = 0; i < objects; i++) {
+				int[] box = boxes[i];
+				detections[0][i] = new float[] { (float) box[0] / size, (float) box[1] / size,
+					(float) box[2] / size, (float) box[3] / size, 1, 0.99f };
+
+				// The masks cover the whole frame and are cut to the boxes by the
+				// postprocessing.
+				for (int row = 0; row < MASK_SIZE; row++) {
+					for (int col = 0; col < MASK_SIZE; col++) {
+						float y = (row + 0.5f) * size / MASK_SIZE;
+						float x = (col + 0.5f) * size / MASK_SIZE;
+						boolean inside = y >= box[0] && y < box[2] && x >= box[1] && x < box[3];
+						masks[0][i][row][col][1] = inside ? 1 : 0;
+					}
+				}
+			}
+
+			op(g, "Add", "output_detections", constant(g, "detections", detections), zero);
+			op(g, "Add", "output_mrcnn_mask", constant(g, "mrcnn_mask", masks), zero);
+			constant(g, "output_mrcnn_class", new float[1][objects][NUM_CLASSES]);
+			constant(g, "output_mrcnn_bbox", new float[1][objects][NUM_CLASSES][4]);
+			constant(g, "output_rois", new float[][][] { this.randomArray(objects, 4) });
+
+			return g.toGraphDef();
+		}
+	}
+
+	byte[] createPostprocessingGraph() {
+		try (Graph g = new Graph()) {
+			placeholder(g, "detections", DataType.FLOAT);
+			Output<?> mrcnnMask = placeholder(g, "mrcnn_mask", DataType.FLOAT);
+			placeholder(g, "original_image_shape", DataType.INT64);
+			placeholder(g, "image_shape", DataType.INT64);
+			placeholder(g, "window", DataType.INT32);
+
+			// [1, N, 28, 28, C] -> [N, H, W]
+			Output<?> reshaped = op(g, "Reshape", "mrcnn_mask_reshaped", mrcnnMask, constant(g,
+				"mask_shape", new int[] { objects, MASK_SIZE, MASK_SIZE, NUM_CLASSES }));
+			Output<?> resized = op(g, "ResizeBilinear", "mrcnn_mask_resized", reshaped, constant(g,
+				"frame_size", new int[] { size, size }));
+			op(g, "Max", "masks", resized, constant(g, "class_axis", new int[] { 3 }));
+
+			int[] classIds = new int[objects];
+			float[] scores = new float[objects];
+			for (int i = 0; i < objects; i++) {
+				classIds[i] = 1;
+				scores[i] = 0.99f;
+			}
+			constant(g, "rois", boxes);
+			constant(g, "class_ids", classIds);
+			constant(g, "scores", scores);
+
+			return g.toGraphDef();
+		}
+	}
+
+	// -- Helper methods --
+
+	private float[][] randomArray(int rows, int columns) {
+		float[][] array = new float[rows][columns];
+		for (float[] row : array) {
+			for (int i = 0; i < columns; i++) {
+				row[i] = random.nextFloat();
+			}
+		}
+		return array;
+	}
+
+	private float[][][][] randomKernel(int height, int width, int inputs, int outputs) {
+		float[][][][] kernel = new float[height][width][][];
+		for (float[][][] row : kernel) {
+			for (int i = 0; i < width; i++) {
+				row[i] = this.randomArray(inputs, outputs);
+			}
+		}
+		return kernel;
+	}
+
+	private static Output<?> placeholder(Graph g, String name, DataType type) {
+		return g.opBuilder("Placeholder", name).setAttr("dtype", type).build().output(0);
+	}
+
+	private static Output<?> constant(Graph g, String name, Object value) {
+		try (Tensor<?> tensor = Tensor.create(value)) {
+			return g.opBuilder("Const", name).setAttr("dtype", tensor.dataType()).setAttr("value",
+				tensor).build().output(0);
+		}
+	}
+
+	private static Output<?> op(Graph g, String type, String name, Output<?>... inputs) {
+		OperationBuilder builder = g.opBuilder(type, name);
+		for (Output<?> input : inputs) {
+			builder.addInput(input);
+		}
+		return builder.build().output(0);
+	}
+
+}
@@ -0,0 +1,112 @@
+
+package sc.fiji.maskflow;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import sc.fiji.maskflow.internal.CompactMask;
+import sc.fiji.maskflow.internal.Detection;
+
+/**
+ * Disks on a grid moving randomly, some of them missing in a few frames, and
+ * their detections.
+ */
+class SyntheticStack {
+
+	private final int size;
+	private final int frames;
+	private final int radius;
+
+	// frame, x, y
+	private final List<int[]> objects = new ArrayList<>();
+
+	/**
+	 * @param size Width and height of the frames.
+	 * @param frames Number of frames.
+	 * @param objects Number of objects per frame.
+	 */
+	SyntheticStack(int size, int frames, int objects) {
+		this.size = size;
+		this.frames = frames;
+
+		int columns = (int) Math.ceil(Math.sqrt(objects));
+		int spacing = size / (columns + 1);
+		this.radius = Math.max(spacing / 4, 1);
+
+		Random random = new Random(42);
+		double[][] positions = new double[objects][];
+		for (int i = 0; i < objects; i++) {
+			positions[i] = new double[] { spacing * (1 + i % columns), spacing * (1 + i /
+				columns) };
+		}
+		for (int frame = 0; frame < frames; frame++) {
+			for (double[] position : positions) {
+				position[0] = this.clamp(position[0] + 3 * random.nextDouble() - 1.5);
+				position[1] = this.clamp(position[1] + 3 * random.nextDouble() - 1.5);
+				if (random.nextDouble() > 0.1) {
+					this.objects.add(new int[] { frame, (int) position[0], (int) position[1] });
+				}
+			}
+		}
+	}
+
+	/** The X, Y, T stack of frames. */
+	Img<FloatType> createImage() {
+		Img<FloatType> img = ArrayImgs.floats(size, size, frames);
+		RandomAccess<FloatType> ra = img.randomAccess();
+		for (int[] object : objects) {
+			ra.setPosition(object[0], 2);
+			for (int y = -radius; y <= radius; y++) {
+				for (int x = -radius; x <= radius; x++) {
+					if (x * x + y * y <= radius * radius) {
+						ra.setPosition(object[1] + x, 0);
+						ra.setPosition(object[2] + y, 1);
+						ra.get().set(255);
+					}
+				}
+			}
+		}
+		return img;
+	}
+
+	/** The detections of the objects, frame by frame. */
+	List<Detection> createDetections() {
+		int width = 2 * radius + 1;
+		float[] disk = new float[width * width];
+		for (int y = -radius; y <= radius; y++) {
+			for (int x = -radius; x <= radius; x++) {
+				disk[(y + radius) * width + x + radius] = x * x + y * y <= radius * radius ? 1 : 0;
+			}
+		}
+
+		List<Detection> detections = new ArrayList<>(objects.size());
+		for (int[] object : objects) {
+			CompactMask mask = CompactMask.create(object[1] - radius, object[2] - radius, width,
+				width, disk, 0, width, false);
+			detections.add(new Detection(object[0], 1, 0.99f, mask));
+		}
+		return detections;
+	}
+
+	/** The table of the detections, as built by the engine. */
+	DetectionTable createTable() {
+		DetectionTable table = new DetectionTable();
+		for (Detection detection : this.createDetections()) {
+			table.addRow(detection.getFrame(), detection.getClassId(), "object", detection
+				.getScore(), detection.getX(), detection.getY(), detection.getWidth(), detection
+					.getHeight());
+		}
+		return table;
+	}
+
+	// Keep the disks inside the frame.
+	private double clamp(double position) {
+		return Math.min(Math.max(position, radius), size - radius - 1);
+	}
+
+}
@@ -0,0 +1,108 @@
+
+package sc.fiji.maskflow;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+import org.jgrapht.graph.SimpleWeightedGraph;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.tracking.LAPUtils;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.logic.BitType;
+import sc.fiji.maskflow.internal.CompactMask;
+import sc.fiji.maskflow.internal.CompactMaskStack;
+import sc.fiji.maskflow.internal.Detection;
+import sc.fiji.maskflow.internal.DeterministicLAPTracker;
+import sc.fiji.maskflow.internal.SpotExtractor;
+
+/**
+ * The steps of {@link ObjectsTracker} on the detections of a
+ * {@link SyntheticStack}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class TrackingBenchmark {
+
+	@Param({ "256" })
+	public int size;
+
+	@Param({ "100" })
+	public int frames;
+
+	@Param({ "20" })
+	public int objects;
+
+	@Param({ "1" })
+	public int numThreads;
+
+	private RandomAccessibleInterval<BitType> masks;
+	private DetectionTable table;
+	private Map<String, Object> settings;
+
+	private List<Spot> spots;
+	private SimpleWeightedGraph<Spot, DefaultWeightedEdge> graph;
+
+	@Setup
+	public void setUp() {
+		SyntheticStack stack = new SyntheticStack(size, frames, objects);
+		List<Detection> detections = stack.createDetections();
+		table = stack.createTable();
+
+		// The lazy masks built by the engine.
+		List<CompactMask> compactMasks = new ArrayList<>();
+		for (Detection detection : detections) {
+			compactMasks.add(detection.getMask());
+		}
+		masks = new CompactMaskStack(size, size, compactMasks);
+
+		// Same settings as the tracker command.
+		settings = new HashMap<>();
+		settings.putAll(LAPUtils.getDefaultLAPSettingsMap());
+		settings.put("LINKING_MAX_DISTANCE", 10.0);
+		settings.put("GAP_CLOSING_MAX_DISTANCE", 10.0);
+		settings.put("MAX_FRAME_GAP", 3);
+		settings.put("ALLOW_GAP_CLOSING", true);
+
+		spots = this.buildSpots();
+		graph = this.link();
+	}
+
+	@Benchmark
+	public List<Spot> buildSpots() {
+		return new SpotExtractor().extract(masks, table);
+	}
+
+	@Benchmark
+	public SimpleWeightedGraph<Spot, DefaultWeightedEdge> link() {
+		DeterministicLAPTracker tracker = new DeterministicLAPTracker(spots, settings);
+		tracker.setNumThreads(numThreads);
+		if (!tracker.process()) {
+			throw new IllegalStateException(tracker.getErrorMessage());
+		}
+		return tracker.getResult();
+	}
+
+	@Benchmark
+	public int[] buildTracks() {
+		return ObjectsTracker.buildTracks(graph, spots.size());
+	}
+
+}
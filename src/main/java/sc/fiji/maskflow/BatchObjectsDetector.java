@@ -0,0 +1,334 @@
+
+package sc.fiji.maskflow;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.scijava.Context;
+import org.scijava.ItemIO;
+import org.scijava.ItemVisibility;
+import org.scijava.command.Command;
+import org.scijava.command.CommandModule;
+import org.scijava.command.CommandService;
+import org.scijava.io.location.Location;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.table.DefaultGenericTable;
+import org.scijava.table.GenericTable;
+
+import io.scif.services.DatasetIOService;
+import net.imagej.Dataset;
+import net.imagej.DatasetService;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgView;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import sc.fiji.maskflow.internal.BatchManifest;
+import sc.fiji.maskflow.utils.TableUtils;
+
+/**
+ * Detect and track objects in all the matching files of a directory.
+ * <p>
+ * Several files are processed at once by engines sharing the same model
+ * sessions. The table and the masks of a file are written next to it and the
+ * file is then recorded in a manifest so an interrupted batch resumes without
+ * processing finished files again.
+ */
+@Plugin(type = Command.class, menuPath = "Plugins>Maskflow>Batch Detect and Track Objects",
+	headless = true)
+public class BatchObjectsDetector implements Command {
+
+	public static final String MANIFEST_FILENAME = ".maskflow-batch";
+	public static final String TABLE_SUFFIX = "-objects.csv";
+	public static final String MASKS_SUFFIX = "-masks.tif";
+
+	@Parameter
+	private Context context;
+
+	@Parameter
+	private LogService log;
+
+	@Parameter
+	private CommandService cs;
+
+	@Parameter
+	private DatasetService ds;
+
+	@Parameter
+	private DatasetIOService datasetIO;
+
+	@Parameter(visibility = ItemVisibility.MESSAGE, required = false)
+	private final String header = "You can select the model from 2 different sources.";
+
+	@Parameter(required = false, label = "Model Location (URL or filepath to a ZIP file)",
+		description = "The location to the model as a ZIP file. It can be an URL or a filepath.")
+	private String model = null;
+
+	@Parameter(visibility = ItemVisibility.MESSAGE, required = false)
+	private final String or1 = "or";
+
+	@Parameter(choices = { "---", "Microtubule" }, required = false, label = "Packaged Models",
+		description = "A list of prepackaged models.")
+	private String modelName = null;
+
+	@Parameter(label = "Input Directory", style = "directory")
+	private File inputDirectory;
+
+	@Parameter(required = false, label = "File Pattern",
+		description = "Glob matched against the paths relative to the input directory, " +
+			"for example *.tif or **/*.tif.")
+	private String pattern = "*.tif";
+
+	@Parameter(required = false, label = "Parallel Files",
+		description = "Number of files processed at once. Each file is loaded in memory.")
+	private int parallelFiles = 2;
+
+	@Parameter(required = false, label = "Large Stacks",
+		description = "Read the frames lazily and write the results as they come, so files " +
+			"larger than the memory can be processed. Objects are tracked online and their " +
+			"ids are provisional.")
+	private boolean outOfCore = false;
+
+	@Parameter(required = false, label = "Track Objects",
+		description = "Track the detected objects. The object ids are added to the tables.")
+	private boolean track = true;
+
+	@Parameter(required = false)
+	private double linkingMaxDistance = 10.0;
+
+	@Parameter(required = false)
+	private double gapClosingMaxDistance = 10.0;
+
+	@Parameter(required = false)
+	private int maxFrameGap = 3;
+
+	@Parameter(required = false, label = "Resume",
+		description = "Skip the files processed by a previous run and not modified since.")
+	private boolean resume = true;
+
+	@Parameter(type = ItemIO.OUTPUT)
+	private GenericTable summary;
+
+	private Location modelLocation;
+	private String modelCacheName;
+	private BatchManifest manifest;
+
+	@Override
+	public void run() {
+		try {
+			this.modelLocation = ObjectsDetector.getModelLocation(model, modelName);
+			this.modelCacheName = ObjectsDetector.getModelCacheName(modelLocation);
+
+			Path directory = inputDirectory.toPath();
+			this.manifest = new BatchManifest(directory.resolve(MANIFEST_FILENAME), directory);
+			if (!resume) {
+				this.manifest.clear();
+			}
+
+			List<Path> inputs = findInputs(directory, pattern);
+			log.info(inputs.size() + " files match " + pattern + " in " + directory + ".");
+
+			this.summary = new DefaultGenericTable();
+			for (String column : new String[] { "file", "status", "objects", "seconds" }) {
+				this.summary.appendColumn(column);
+			}
+
+			ExecutorService executor = Executors.newFixedThreadPool(Math.max(parallelFiles, 1));
+			try {
+				List<Future<double[]>> results = new ArrayList<>();
+				for (Path input : inputs) {
+					results.add(manifest.isDone(input) ? null : executor.submit(() -> {
+						double[] objectsAndTime = this.process(input);
+						manifest.markDone(input);
+						return objectsAndTime;
+					}));
+				}
+
+				// Results are gathered in file order.
+				for (int i = 0; i < inputs.size(); i++) {
+					this.summary.appendRow();
+					int row = this.summary.getRowCount() - 1;
+					this.summary.set("file", row, directory.relativize(inputs.get(i)).toString());
+
+					if (results.get(i) == null) {
+						this.summary.set("status", row, "skipped");
+						continue;
+					}
+
+					try {
+						double[] objectsAndTime = results.get(i).get();
+						this.summary.set("status", row, "done");
+						this.summary.set("objects", row, (int) objectsAndTime[0]);
+						this.summary.set("seconds", row, objectsAndTime[1]);
+					}
+					catch (ExecutionException exc) {
+						log.error("Processing " + inputs.get(i) + " failed: " + exc.getCause());
+						this.summary.set("status", row, "failed: " + exc.getCause());
+					}
+				}
+			}
+			finally {
+				executor.shutdownNow();
+			}
+
+			log.info("Batch done.");
+		}
+		catch (Exception e) {
+			log.error(e);
+		}
+	}
+
+	/**
+	 * Get the files of a directory matching a glob, without the outputs of
+	 * previous runs, sorted by path.
+	 */
+	static List<Path> findInputs(Path directory, String pattern) throws IOException {
+		PathMatcher matcher = directory.getFileSystem().getPathMatcher("glob:" + pattern);
+		try (Stream<Path> files = Files.walk(directory)) {
+			return files.filter(Files::isRegularFile).filter(file -> matcher.matches(directory
+				.relativize(file))).filter(file -> !isOutput(file)).sorted().collect(Collectors
+					.toList());
+		}
+	}
+
+	/** Whether a file is written by the batch. */
+	static boolean isOutput(Path file) {
+		String name = file.getFileName().toString();
+		if (name.equals(MANIFEST_FILENAME) || name.endsWith(TABLE_SUFFIX) || name.endsWith(
+			MASKS_SUFFIX) || name.endsWith(".tmp"))
+		{
+			return true;
+		}
+
+		// Files inside the N5 containers of large stacks.
+		for (Path parent = file.getParent(); parent != null; parent = parent.getParent()) {
+			Path parentName = parent.getFileName();
+			if (parentName != null && (parentName.toString().endsWith(
+				LargeStackObjectsDetector.LABELS_SUFFIX) || parentName.toString().endsWith(
+					LargeStackObjectsDetector.LABELS_SUFFIX + ".tmp")))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Detect and track the objects of a file and write the results. The file is
+	 * recorded in the manifest once this returns.
+	 *
+	 * @return The number of objects and the processing time in seconds.
+	 */
+	double[] process(Path input) throws Exception {
+		log.info("Processing " + input + ".");
+		long start = System.currentTimeMillis();
+		if (outOfCore) {
+			return this.processLargeStack(input, start);
+		}
+
+		Dataset dataset = datasetIO.open(input.toString());
+
+		// Engines are cheap, the sessions are shared by the model service.
+		MaskflowEngine engine = new MaskflowEngine(context, modelLocation, modelCacheName);
+		MaskflowEngine.Result result = engine.detectStack(dataset);
+
+		GenericTable table = result.getTable();
+		Dataset masks = null;
+		if (result.getMasks() != null) {
+			masks = this.createMasks(result, "Masks of " + dataset.getName());
+
+			if (track) {
+				Map<String, Object> inputs = new HashMap<>();
+				inputs.put("masks", masks);
+				inputs.put("table", table);
+				inputs.put("linkingMaxDistance", linkingMaxDistance);
+				inputs.put("gapClosingMaxDistance", gapClosingMaxDistance);
+				inputs.put("maxFrameGap", maxFrameGap);
+				inputs.put("fillROIManager", false);
+				CommandModule module = cs.run(ObjectsTracker.class, true, inputs).get();
+				table = (GenericTable) module.getOutput("resultTable");
+				if (table == null) {
+					throw new IOException("Tracking failed.");
+				}
+			}
+		}
+
+		// Outputs are written to temporary files and moved so a file is either
+		// complete or missing.
+		Path tableFile = this.outputPath(input, TABLE_SUFFIX);
+		Path tmpTable = tableFile.resolveSibling(tableFile.getFileName() + ".tmp");
+		TableUtils.writeCSV(table, tmpTable.toFile());
+		Files.move(tmpTable, tableFile, StandardCopyOption.REPLACE_EXISTING,
+			StandardCopyOption.ATOMIC_MOVE);
+
+		if (masks != null) {
+			Path masksFile = this.outputPath(input, MASKS_SUFFIX);
+			// Keep the extension so the file format is recognized.
+			Path tmpMasks = this.outputPath(input, ".tmp" + MASKS_SUFFIX);
+			datasetIO.save(masks, tmpMasks.toString());
+			Files.move(tmpMasks, masksFile, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		}
+
+		log.info(table.getRowCount() + " objects detected in " + input + ".");
+		return new double[] { table.getRowCount(), (System.currentTimeMillis() - start) / 1000.0 };
+	}
+
+	private double[] processLargeStack(Path input, long start) throws Exception {
+		Map<String, Object> inputs = new HashMap<>();
+		inputs.put("model", model);
+		inputs.put("modelName", modelName);
+		inputs.put("input", input.toFile());
+		inputs.put("track", track);
+		inputs.put("linkingMaxDistance", linkingMaxDistance);
+		inputs.put("gapClosingMaxDistance", gapClosingMaxDistance);
+		inputs.put("maxFrameGap", maxFrameGap);
+		CommandModule module = cs.run(LargeStackObjectsDetector.class, true, inputs).get();
+		Integer objects = (Integer) module.getOutput("objects");
+		if (objects == null) {
+			throw new IOException("Detection failed.");
+		}
+
+		log.info(objects + " objects detected in " + input + ".");
+		return new double[] { objects, (System.currentTimeMillis() - start) / 1000.0 };
+	}
+
+	private Dataset createMasks(MaskflowEngine.Result result, String name) {
+		// Masks are saved as 8-bit images.
+		RandomAccessibleInterval<UnsignedByteType> bytes = Converters.convert(result.getMasks(), (
+			mask, value) -> value.set(mask.get() ? 255 : 0), new UnsignedByteType());
+		Img<UnsignedByteType> img = ImgView.wrap(bytes, new ArrayImgFactory<>(
+			new UnsignedByteType()));
+
+		AxisType[] axisTypes = new AxisType[] { Axes.X, Axes.Y, Axes.TIME };
+		return ds.create(new ImgPlus<>(img, name, axisTypes));
+	}
+
+	static Path outputPath(Path input, String suffix) {
+		String name = input.getFileName().toString();
+		int extension = name.lastIndexOf('.');
+		String baseName = extension > 0 ? name.substring(0, extension) : name;
+		return input.resolveSibling(baseName + suffix);
+	}
+
+}
@@ -1,21 +1,43 @@
 
 package sc.fiji.maskflow;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URLConnection;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.zip.ZipFile;
 
 import org.scijava.app.AppService;
 import org.scijava.app.StatusService;
 import org.scijava.download.DiskLocationCache;
 import org.scijava.download.DownloadService;
 import org.scijava.event.EventHandler;
-import org.scijava.io.location.BytesLocation;
+import org.scijava.io.location.FileLocation;
 import org.scijava.io.location.Location;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
@@ -23,7 +45,6 @@ import org.scijava.service.AbstractService;
 import org.scijava.service.Service;
 import org.scijava.task.Task;
 import org.scijava.task.event.TaskEvent;
-import org.scijava.util.ByteArray;
 
 import net.imagej.ImageJService;
 
@@ -34,8 +55,21 @@ import net.imagej.ImageJService;
 @Plugin(type = Service.class)
 public class CustomDownloadService extends AbstractService implements ImageJService {
 
+	/** Size of the chunks copied at once when downloading and unpacking. */
+	private static final long BUFFER_SIZE = 1024 * 1024;
+
+	/** File written in a model directory once it is completely unpacked. */
+	static final String CHECKSUMS_FILE = ".checksums.sha256";
+
 	/** Disk cache defining where compressed models are stored locally. */
-	private DiskLocationCache modelCache;
+	private volatile DiskLocationCache modelCache;
+
+	/** Models checked or installed by this process. */
+	private final Map<String, File> installedModels = new ConcurrentHashMap<>();
+
+	/** Models being installed, other callers wait for the same install. */
+	private final Map<String, CompletableFuture<File>> pendingModels =
+		new ConcurrentHashMap<>();
 
 	@Parameter
 	private DownloadService downloadService;
@@ -54,14 +88,54 @@ public class CustomDownloadService extends AbstractService implements ImageJServ
 		return new File(modelDir, filePath);
 	}
 
+	/**
+	 * Check the checksums of all the files of an unpacked model.
+	 *
+	 * @return false if the model is not installed or a file is corrupted.
+	 */
+	public boolean verifyModel(final String modelName) throws IOException {
+		return isValid(new File(modelCache().getBaseDirectory(), modelName));
+	}
+
 	// -- Helper methods --
 
+	/**
+	 * A model directory is valid when its checksums file exists and all the
+	 * listed files have the expected size and SHA-256.
+	 */
+	private boolean isValid(final File modelDir) throws IOException {
+		final Map<String, String[]> checksums = readChecksums(modelDir);
+		if (checksums == null) return false;
+
+		// Sizes first, it is cheap.
+		for (final Map.Entry<String, String[]> entry : checksums.entrySet()) {
+			final File file = new File(modelDir, entry.getKey());
+			if (!file.isFile() || file.length() != Long.parseLong(entry.getValue()[1])) {
+				return false;
+			}
+		}
+
+		for (final Map.Entry<String, String[]> entry : checksums.entrySet()) {
+			final Path file = new File(modelDir, entry.getKey()).toPath();
+			final MessageDigest digest = sha256();
+			try (final InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+				final byte[] buf = new byte[64 * 1024];
+				while (in.read(buf) >= 0) {
+					// Read the whole file.
+				}
+			}
+			if (!toHex(digest.digest()).equals(entry.getValue()[0])) return false;
+		}
+		return true;
+	}
+
 	private DiskLocationCache modelCache() {
 		if (modelCache == null) initModelCache();
 		return modelCache;
 	}
 
 	private synchronized void initModelCache() {
+		if (modelCache != null) return;
 		final DiskLocationCache cache = new DiskLocationCache();
 
 		// Cache the models into $IMAGEJ_DIR/models.
@@ -74,65 +148,247 @@ public class CustomDownloadService extends AbstractService implements ImageJServ
 	}
 
 	// TODO - Migrate unpacking logic into the DownloadService proper.
-	// And consider whether/how to avoid using so much temporary space.
 
 	private File modelDir(final Location source, final String modelName) throws IOException {
-		final File modelDir = new File(modelCache().getBaseDirectory(), modelName);
-		if (!modelDir.exists()) try {
-			downloadAndUnpackResource(source, modelDir);
+		final File installed = installedModels.get(modelName);
+		if (installed != null) return installed;
+
+		// Only one thread installs a model, the others wait for it.
+		final CompletableFuture<File> future = new CompletableFuture<>();
+		final CompletableFuture<File> pending = pendingModels.putIfAbsent(modelName, future);
+		if (pending != null) {
+			try {
+				return pending.get();
+			}
+			catch (final InterruptedException | ExecutionException exc) {
+				throw new IOException("Can't install model " + modelName, exc);
+			}
+		}
+
+		try {
+			final File modelDir = installModel(source, modelName);
+			installedModels.put(modelName, modelDir);
+			future.complete(modelDir);
+			return modelDir;
+		}
+		catch (final IOException | RuntimeException exc) {
+			future.completeExceptionally(exc);
+			throw exc;
 		}
-		catch (final InterruptedException | ExecutionException exc) {
-			throw new IOException(exc);
+		finally {
+			pendingModels.remove(modelName, future);
+		}
+	}
+
+	/**
+	 * Installs a model in the cache unless another process already did it. The
+	 * model is unpacked in a temporary directory which is renamed once complete,
+	 * and a file lock makes processes sharing the cache install it only once.
+	 * The checksums of the files are checked after unpacking and before reusing
+	 * an existing directory, so a corrupted model is installed again. This is
+	 * done once per model and process.
+	 */
+	private File installModel(final Location source, final String modelName)
+		throws IOException
+	{
+		final File baseDir = modelCache().getBaseDirectory();
+		final File modelDir = new File(baseDir, modelName);
+		if (isValid(modelDir)) return modelDir;
+
+		final File lockFile = new File(baseDir, modelName + ".lock");
+		lockFile.getParentFile().mkdirs();
+		try (final FileChannel channel = FileChannel.open(lockFile.toPath(),
+			StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+				final FileLock lock = channel.lock())
+		{
+			// Another process may have installed it while we were waiting.
+			if (isValid(modelDir)) return modelDir;
+
+			final Path parent = modelDir.toPath().getParent();
+			final String tmpPrefix = modelDir.getName() + ".tmp";
+
+			// Directories left by an interrupted install.
+			try (final DirectoryStream<Path> leftovers = Files.newDirectoryStream(parent,
+				tmpPrefix + "*"))
+			{
+				for (final Path leftover : leftovers) {
+					deleteRecursively(leftover);
+				}
+			}
+
+			final Path tmpDir = Files.createTempDirectory(parent, tmpPrefix);
+			try {
+				downloadAndUnpackResource(source, tmpDir.toFile());
+				if (!isValid(tmpDir.toFile())) {
+					throw new IOException("Model " + modelName + " is corrupted after unpacking.");
+				}
+
+				// Move an incomplete model out of the way before renaming.
+				if (modelDir.exists()) {
+					final Path stale = Files.createTempDirectory(parent, tmpPrefix);
+					Files.move(modelDir.toPath(), stale.resolve(modelDir.getName()));
+					deleteRecursively(stale);
+				}
+				Files.move(tmpDir, modelDir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (final InterruptedException | ExecutionException exc) {
+				throw new IOException("Can't download model " + modelName, exc);
+			}
+			finally {
+				deleteRecursively(tmpDir);
+			}
 		}
 		return modelDir;
 	}
 
-	/** Downloads and unpacks a zipped resource. */
-	private void downloadAndUnpackResource(final Location source, final File destDir)
+	/** @return The SHA-256 and size of each file, or null without checksums. */
+	private Map<String, String[]> readChecksums(final File modelDir) throws IOException {
+		final Path checksumsFile = new File(modelDir, CHECKSUMS_FILE).toPath();
+		if (!Files.isRegularFile(checksumsFile)) return null;
+		final Map<String, String[]> checksums = new LinkedHashMap<>();
+		for (final String line : Files.readAllLines(checksumsFile, StandardCharsets.UTF_8)) {
+			// sha256 size path
+			final String[] fields = line.split(" ", 3);
+			if (fields.length != 3) return null;
+			checksums.put(fields[2], new String[] { fields[0], fields[1] });
+		}
+		return checksums;
+	}
+
+	private static void deleteRecursively(final Path path) throws IOException {
+		if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) return;
+		if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+			try (final DirectoryStream<Path> children = Files.newDirectoryStream(path)) {
+				for (final Path child : children) {
+					deleteRecursively(child);
+				}
+			}
+		}
+		Files.deleteIfExists(path);
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (final NoSuchAlgorithmException exc) {
+			// Every Java platform supports SHA-256.
+			throw new IllegalStateException(exc);
+		}
+	}
+
+	private static String toHex(final byte[] bytes) {
+		final StringBuilder sb = new StringBuilder(2 * bytes.length);
+		for (final byte b : bytes) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Downloads and unpacks a zipped resource. The archive is streamed to a
+	 * temporary file next to the destination and unpacked from there, so the
+	 * heap use does not depend on the size of the model.
+	 */
+	void downloadAndUnpackResource(final Location source, final File destDir)
 		throws InterruptedException, ExecutionException, IOException
 	{
-		// Allocate a dynamic byte array.
-		final ByteArray byteArray = new ByteArray(1024 * 1024);
-
-		// Download the compressed model into the byte array.
-		final BytesLocation bytes = new BytesLocation(byteArray);
-		final Task task = //
-			downloadService.download(source, bytes, modelCache()).task();
-		final StatusUpdater statusUpdater = new StatusUpdater(task);
+		final File parent = destDir.getAbsoluteFile().getParentFile();
+		parent.mkdirs();
+		final Path zipFile = Files.createTempFile(parent.toPath(), destDir.getName(), ".zip");
+		final StatusUpdater statusUpdater = new StatusUpdater(null);
 		context().inject(statusUpdater);
-		task.waitFor();
-
-		// Extract the contents of the compressed data to the model cache.
-		final byte[] buf = new byte[64 * 1024];
-		final ByteArrayInputStream bais = new ByteArrayInputStream(//
-			byteArray.getArray(), 0, byteArray.size());
-		destDir.mkdirs();
-		try (final ZipInputStream zis = new ZipInputStream(bais)) {
+		try {
+			download(source, zipFile, statusUpdater);
+			unpack(zipFile, destDir.toPath(), statusUpdater);
+		}
+		finally {
+			Files.deleteIfExists(zipFile);
+			statusUpdater.clear();
+		}
+	}
+
+	/** Streams a resource to a file. */
+	private void download(final Location source, final Path file,
+		final StatusUpdater statusUpdater) throws InterruptedException, ExecutionException,
+		IOException
+	{
+		final URI uri = source.getURI();
+		if (uri == null) {
+			// Not an URL: let the download service write the file.
+			final Task task = //
+				downloadService.download(source, new FileLocation(file.toFile()), modelCache())
+					.task();
+			final StatusUpdater taskUpdater = new StatusUpdater(task);
+			context().inject(taskUpdater);
+			task.waitFor();
+			return;
+		}
+
+		final URLConnection connection = uri.toURL().openConnection();
+		final long size = connection.getContentLengthLong();
+		final String message = "Downloading " + source.getName();
+		try (final ReadableByteChannel in = Channels.newChannel(connection.getInputStream());
+				final FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			long position = 0;
 			while (true) {
-				final ZipEntry entry = zis.getNextEntry();
-				if (entry == null) break; // All done!
+				final long r = out.transferFrom(in, position, BUFFER_SIZE);
+				if (r <= 0) break; // end of stream
+				position += r;
+				if (size > 0) statusUpdater.update(position, size, message);
+				else statusUpdater.update(message + ": " + position / (1024 * 1024) + " MB");
+			}
+		}
+	}
+
+	/** Unpacks a zip file into a directory. */
+	private void unpack(final Path zipFile, final Path destDir,
+		final StatusUpdater statusUpdater) throws IOException
+	{
+		final Path root = destDir.toAbsolutePath().normalize();
+		Files.createDirectories(root);
+		final List<String> checksums = new ArrayList<>();
+		try (final ZipFile zip = new ZipFile(zipFile.toFile())) {
+			final Enumeration<? extends ZipEntry> entries = zip.entries();
+			while (entries.hasMoreElements()) {
+				final ZipEntry entry = entries.nextElement();
 				final String name = entry.getName();
+				final Path outFile = root.resolve(name).normalize();
+				if (!outFile.startsWith(root)) {
+					throw new IOException("Invalid entry in the model archive: " + name);
+				}
 				statusUpdater.update("Unpacking " + name);
-				final File outFile = new File(destDir, name);
 				if (entry.isDirectory()) {
-					outFile.mkdirs();
+					Files.createDirectories(outFile);
 				}
 				else {
-					final int size = (int) entry.getSize();
-					int len = 0;
-					try (final FileOutputStream out = new FileOutputStream(outFile)) {
+					Files.createDirectories(outFile.getParent());
+					final MessageDigest digest = sha256();
+					long position = 0;
+					try (final ReadableByteChannel in = Channels.newChannel(new DigestInputStream(zip
+						.getInputStream(entry), digest)); final FileChannel out = FileChannel.open(outFile,
+							StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+							StandardOpenOption.TRUNCATE_EXISTING))
+					{
 						while (true) {
-							statusUpdater.update(len, size, "Unpacking " + name);
-							final int r = zis.read(buf);
-							if (r < 0) break; // end of entry
-							len += r;
-							out.write(buf, 0, r);
+							final long r = out.transferFrom(in, position, BUFFER_SIZE);
+							if (r <= 0) break; // end of entry
+							position += r;
+							if (entry.getSize() > 0) {
+								statusUpdater.update(position, entry.getSize(), "Unpacking " + name);
+							}
 						}
 					}
+					checksums.add(toHex(digest.digest()) + " " + position + " " + root.relativize(
+						outFile).toString().replace(File.separatorChar, '/'));
 				}
 			}
 		}
-		statusUpdater.clear();
+
+		// Written last: a model without checksums is incomplete.
+		Files.write(root.resolve(CHECKSUMS_FILE), checksums, StandardCharsets.UTF_8);
 	}
 
 	/**
@@ -158,13 +414,14 @@ public class CustomDownloadService extends AbstractService implements ImageJServ
 			statusService.showStatus(message);
 		}
 
-		public void update(final int value, final int max, final String message) {
+		public void update(final long value, final long max, final String message) {
 			final long timestamp = System.currentTimeMillis();
 			if (timestamp < lastUpdate + 100) return; // Avoid excessive updates.
 			lastUpdate = timestamp;
 
+			// The status bar only takes ints, report the progress in KB.
 			final double percent = 100.0 * value / max;
-			statusService.showStatus(value, max, message + ": " + //
+			statusService.showStatus((int) (value / 1024), (int) (max / 1024), message + ": " + //
 				formatter.format(percent) + "%");
 		}
 
@@ -174,9 +431,9 @@ public class CustomDownloadService extends AbstractService implements ImageJServ
 
 		@EventHandler
 		private void onEvent(final TaskEvent evt) {
-			if (task == evt.getTask()) {
-				final int value = (int) task.getProgressValue();
-				final int max = (int) task.getProgressMaximum();
+			if (task != null && task == evt.getTask()) {
+				final long value = task.getProgressValue();
+				final long max = task.getProgressMaximum();
 				final String message = task.getStatusMessage();
 				update(value, max, message);
 			}
@@ -0,0 +1,184 @@
+
+package sc.fiji.maskflow;
+
+import org.scijava.table.DefaultGenericTable;
+import org.scijava.table.FloatColumn;
+import org.scijava.table.GenericColumn;
+import org.scijava.table.GenericTable;
+import org.scijava.table.IntColumn;
+
+/**
+ * A table of detected objects with one primitive column per field.
+ * <p>
+ * Values are stored in growable int and float arrays and can be read and
+ * written without boxing through the typed accessors. The table is still a
+ * {@link GenericTable} so it can be displayed and used by scripts like any
+ * other table. The "object_id" column is only added by the tracker.
+ */
+public class DetectionTable extends DefaultGenericTable {
+
+	public static final String ID = "id";
+	public static final String FRAME = "frame";
+	public static final String CLASS_ID = "class_id";
+	public static final String CLASS_LABEL = "class_label";
+	public static final String SCORE = "score";
+	public static final String X = "x";
+	public static final String Y = "y";
+	public static final String WIDTH = "width";
+	public static final String HEIGHT = "height";
+	public static final String OBJECT_ID = "object_id";
+
+	private final IntColumn ids = new IntColumn(ID);
+	private final IntColumn frames = new IntColumn(FRAME);
+	private final IntColumn classIds = new IntColumn(CLASS_ID);
+	private final GenericColumn classLabels = new GenericColumn(CLASS_LABEL);
+	private final FloatColumn scores = new FloatColumn(SCORE);
+	private final IntColumn xs = new IntColumn(X);
+	private final IntColumn ys = new IntColumn(Y);
+	private final IntColumn widths = new IntColumn(WIDTH);
+	private final IntColumn heights = new IntColumn(HEIGHT);
+
+	private IntColumn objectIds;
+
+	public DetectionTable() {
+		add(ids);
+		add(frames);
+		add(classIds);
+		add(classLabels);
+		add(scores);
+		add(xs);
+		add(ys);
+		add(widths);
+		add(heights);
+	}
+
+	/**
+	 * Append a detected object. Its id is its row.
+	 *
+	 * @return The row of the object.
+	 */
+	public int addRow(int frame, int classId, String classLabel, float score, int x, int y,
+		int width, int height)
+	{
+		appendRow();
+		int row = getRowCount() - 1;
+		ids.setValue(row, row);
+		frames.setValue(row, frame);
+		classIds.setValue(row, classId);
+		classLabels.set(row, classLabel);
+		scores.setValue(row, score);
+		xs.setValue(row, x);
+		ys.setValue(row, y);
+		widths.setValue(row, width);
+		heights.setValue(row, height);
+		return row;
+	}
+
+	public int getId(int row) {
+		return ids.getValue(row);
+	}
+
+	/**
+	 * Set the id of a row. Ids are the rows by default, they can be changed when
+	 * a table only holds a part of the objects.
+	 */
+	public void setId(int row, int id) {
+		ids.setValue(row, id);
+	}
+
+	public int getFrame(int row) {
+		return frames.getValue(row);
+	}
+
+	public int getClassId(int row) {
+		return classIds.getValue(row);
+	}
+
+	public String getClassLabel(int row) {
+		return (String) classLabels.get(row);
+	}
+
+	public float getScore(int row) {
+		return scores.getValue(row);
+	}
+
+	public int getX(int row) {
+		return xs.getValue(row);
+	}
+
+	public int getY(int row) {
+		return ys.getValue(row);
+	}
+
+	public int getWidth(int row) {
+		return widths.getValue(row);
+	}
+
+	public int getHeight(int row) {
+		return heights.getValue(row);
+	}
+
+	public boolean hasObjectIds() {
+		return objectIds != null;
+	}
+
+	public int getObjectId(int row) {
+		return objectIds.getValue(row);
+	}
+
+	/** Set the id of the tracked object of a row, adding the column if needed. */
+	public void setObjectId(int row, int objectId) {
+		if (objectIds == null) {
+			objectIds = new IntColumn(OBJECT_ID);
+			objectIds.setSize(getRowCount());
+			add(objectIds);
+		}
+		objectIds.setValue(row, objectId);
+	}
+
+	/** Get the object ids, the array might be longer than the number of rows. */
+	public int[] getObjectIds() {
+		return objectIds != null ? objectIds.getArray() : new int[0];
+	}
+
+	/**
+	 * Get a detection table from a table. A table with String or boxed values,
+	 * like the ones written by older versions, is converted.
+	 */
+	public static DetectionTable of(GenericTable table) {
+		if (table instanceof DetectionTable) {
+			return (DetectionTable) table;
+		}
+
+		DetectionTable detections = new DetectionTable();
+		boolean hasLabels = table.getColumnIndex(CLASS_LABEL) >= 0;
+		boolean hasObjectIds = table.getColumnIndex(OBJECT_ID) >= 0;
+		for (int row = 0; row < table.getRowCount(); row++) {
+			detections.addRow(intValue(table.get(FRAME, row)), intValue(table.get(CLASS_ID, row)),
+				hasLabels ? String.valueOf(table.get(CLASS_LABEL, row)) : null, floatValue(table.get(
+					SCORE, row)), intValue(table.get(X, row)), intValue(table.get(Y, row)), intValue(table
+						.get(WIDTH, row)), intValue(table.get(HEIGHT, row)));
+			if (hasObjectIds && table.get(OBJECT_ID, row) != null) {
+				detections.setObjectId(row, intValue(table.get(OBJECT_ID, row)));
+			}
+		}
+		return detections;
+	}
+
+	// -- Helper methods --
+
+	private static int intValue(Object value) {
+		if (value instanceof Number) {
+			return ((Number) value).intValue();
+		}
+		return Integer.parseInt(String.valueOf(value));
+	}
+
+	private static float floatValue(Object value) {
+		if (value instanceof Number) {
+			return ((Number) value).floatValue();
+		}
+		return Float.parseFloat(String.valueOf(value));
+	}
+
+}
@@ -0,0 +1,149 @@
+
+package sc.fiji.maskflow;
+
+import java.io.File;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import org.apache.commons.io.FileUtils;
+import org.scijava.Context;
+import org.scijava.ItemIO;
+import org.scijava.ItemVisibility;
+import org.scijava.command.Command;
+import org.scijava.io.location.Location;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import io.scif.config.SCIFIOConfig;
+import io.scif.config.SCIFIOConfig.ImgMode;
+import io.scif.services.DatasetIOService;
+import net.imagej.Dataset;
+import sc.fiji.maskflow.internal.N5LabelWriter;
+
+/**
+ * Detect and track objects in a stack too large to fit in memory.
+ * <p>
+ * The file is opened as a cell image so frames are read from disk when they
+ * are processed. The rows of the table and the masks of a frame are written as
+ * soon as the frame is done: the table to a CSV file and the masks to an N5
+ * label image, so the memory used does not depend on the number of frames.
+ * Objects are tracked online as the frames come, see
+ * {@link OnlineObjectsTracker}.
+ * <p>
+ * The object ids are provisional: the online tracker links a frame as soon as
+ * it comes, with only the tracks of the last maxFrameGap frames, while
+ * {@link ObjectsTracker} links all the frames at once. The ids can therefore
+ * differ from the ones of {@link ObjectsDetectAndTrack}, for example when two
+ * tracks cross or an object comes back after a long gap.
+ */
+@Plugin(type = Command.class, menuPath = "Plugins>Maskflow>Detect Objects in Large Stack",
+	headless = true)
+public class LargeStackObjectsDetector implements Command {
+
+	public static final String LABELS_SUFFIX = "-masks.n5";
+	public static final String LABELS_DATASET = "labels";
+
+	@Parameter
+	private Context context;
+
+	@Parameter
+	private LogService log;
+
+	@Parameter
+	private DatasetIOService datasetIO;
+
+	@Parameter(visibility = ItemVisibility.MESSAGE, required = false)
+	private final String header = "You can select the model from 2 different sources.";
+
+	@Parameter(required = false, label = "Model Location (URL or filepath to a ZIP file)",
+		description = "The location to the model as a ZIP file. It can be an URL or a filepath.")
+	private String model = null;
+
+	@Parameter(visibility = ItemVisibility.MESSAGE, required = false)
+	private final String or1 = "or";
+
+	@Parameter(choices = { "---", "Microtubule" }, required = false, label = "Packaged Models",
+		description = "A list of prepackaged models.")
+	private String modelName = null;
+
+	@Parameter(label = "Input File")
+	private File input;
+
+	@Parameter(required = false, label = "Frames per Chunk",
+		description = "Number of frames read and processed at once.")
+	private int chunkSize = 16;
+
+	@Parameter(required = false, label = "Track Objects",
+		description = "Track the detected objects online. The object ids are added to the " +
+			"table and used as labels. They are provisional and can differ from the ones of " +
+			"Detect and Track Objects, which links all the frames at once.")
+	private boolean track = true;
+
+	@Parameter(required = false)
+	private double linkingMaxDistance = 10.0;
+
+	@Parameter(required = false)
+	private double gapClosingMaxDistance = 10.0;
+
+	@Parameter(required = false)
+	private int maxFrameGap = 3;
+
+	@Parameter(type = ItemIO.OUTPUT)
+	private Integer objects;
+
+	@Override
+	public void run() {
+		try {
+			Location modelLocation = ObjectsDetector.getModelLocation(model, modelName);
+			String modelCacheName = ObjectsDetector.getModelCacheName(modelLocation);
+
+			// Planes are loaded on access and cached with soft references.
+			Dataset dataset = datasetIO.open(input.getAbsolutePath(), new SCIFIOConfig()
+				.imgOpenerSetImgModes(ImgMode.CELL));
+			int width = (int) dataset.dimension(0);
+			int height = (int) dataset.dimension(1);
+			long nFrames = dataset.numDimensions() == 3 ? dataset.dimension(2) : 1;
+
+			Path inputPath = input.toPath().toAbsolutePath();
+			Path tableFile = BatchObjectsDetector.outputPath(inputPath,
+				BatchObjectsDetector.TABLE_SUFFIX);
+			Path labelsDirectory = BatchObjectsDetector.outputPath(inputPath, LABELS_SUFFIX);
+			Path tmpTable = tableFile.resolveSibling(tableFile.getFileName() + ".tmp");
+			Path tmpLabels = labelsDirectory.resolveSibling(labelsDirectory.getFileName() + ".tmp");
+			FileUtils.deleteDirectory(tmpLabels.toFile());
+
+			MaskflowEngine engine = new MaskflowEngine(context, modelLocation, modelCacheName);
+			N5LabelWriter labels = new N5LabelWriter(tmpLabels, LABELS_DATASET, width, height,
+				nFrames);
+			OnlineObjectsTracker tracker = track ? new OnlineObjectsTracker(linkingMaxDistance,
+				gapClosingMaxDistance, maxFrameGap) : null;
+
+			log.info("Detecting objects in " + nFrames + " frames of " + input + ".");
+
+			LargeStackWriter results;
+			try (Writer writer = Files.newBufferedWriter(tmpTable, StandardCharsets.UTF_8)) {
+				results = new LargeStackWriter(engine::createTable, writer, labels, tracker, width,
+					height);
+				engine.detectStack(dataset, chunkSize, results);
+				results.finish();
+			}
+
+			// Outputs are moved once complete, like the ones of a batch.
+			FileUtils.deleteDirectory(labelsDirectory.toFile());
+			Files.move(tmpLabels, labelsDirectory, StandardCopyOption.ATOMIC_MOVE);
+			Files.move(tmpTable, tableFile, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+
+			this.objects = results.getCount();
+			log.info(this.objects + " objects detected in " + input + ".");
+		}
+		catch (Exception e) {
+			log.error(e);
+		}
+	}
+
+}
@@ -0,0 +1,94 @@
+
+package sc.fiji.maskflow;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import sc.fiji.maskflow.internal.CompactMask;
+import sc.fiji.maskflow.internal.CompactMaskStack;
+import sc.fiji.maskflow.internal.Detection;
+import sc.fiji.maskflow.internal.N5LabelWriter;
+import sc.fiji.maskflow.utils.TableUtils;
+
+/**
+ * Writes the detections of a large stack as the frames come: the rows of the
+ * table to a CSV file and the masks to an N5 label image.
+ * <p>
+ * Detection ids continue from frame to frame. Object ids are given by an
+ * {@link OnlineObjectsTracker} when there is one.
+ */
+class LargeStackWriter implements MaskflowEngine.FrameConsumer {
+
+	private final Function<List<Detection>, DetectionTable> tableFactory;
+	private final Writer writer;
+	private final N5LabelWriter labels;
+	private final OnlineObjectsTracker tracker;
+	private final int width;
+	private final int height;
+
+	private int count = 0;
+
+	/**
+	 * @param tableFactory Builds the table of the detections of a frame.
+	 * @param writer Receives the CSV table.
+	 * @param labels Receives the masks.
+	 * @param tracker Tracks the objects, or null.
+	 */
+	LargeStackWriter(Function<List<Detection>, DetectionTable> tableFactory, Writer writer,
+		N5LabelWriter labels, OnlineObjectsTracker tracker, int width, int height)
+	{
+		this.tableFactory = tableFactory;
+		this.writer = writer;
+		this.labels = labels;
+		this.tracker = tracker;
+		this.width = width;
+		this.height = height;
+	}
+
+	@Override
+	public void accept(int frame, List<Detection> detections) throws IOException {
+		DetectionTable table = tableFactory.apply(detections);
+		for (int row = 0; row < table.getRowCount(); row++) {
+			table.setId(row, count + row);
+		}
+
+		List<CompactMask> masks = new ArrayList<>(detections.size());
+		for (Detection detection : detections) {
+			masks.add(detection.getMask());
+		}
+		if (tracker != null) {
+			tracker.addFrame(frame, new CompactMaskStack(width, height, masks), table);
+		}
+
+		// The header is written with the first rows so it has the tracking column.
+		if (count == 0 && table.getRowCount() > 0) {
+			TableUtils.writeCSVHeader(table, writer);
+		}
+		TableUtils.writeCSVRows(table, 0, table.getRowCount(), writer);
+
+		// Label 0 is the background.
+		int[] objectLabels = new int[table.getRowCount()];
+		for (int row = 0; row < objectLabels.length; row++) {
+			objectLabels[row] = (tracker != null ? table.getObjectId(row) : table.getId(row)) + 1;
+		}
+		labels.writeFrame(frame, masks, objectLabels);
+
+		count += table.getRowCount();
+	}
+
+	/** Write the header when no object has been detected. */
+	void finish() throws IOException {
+		if (count == 0) {
+			TableUtils.writeCSVHeader(new DetectionTable(), writer);
+		}
+	}
+
+	/** The number of detections written. */
+	int getCount() {
+		return count;
+	}
+
+}
@@ -0,0 +1,824 @@
+
+package sc.fiji.maskflow;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.scijava.Context;
+import org.scijava.app.StatusService;
+import org.scijava.io.location.Location;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.tensorflow.DataType;
+import org.tensorflow.Operation;
+import org.tensorflow.Session;
+import org.tensorflow.Tensor;
+
+import net.imagej.tensorflow.Tensors;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgView;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import sc.fiji.maskflow.internal.CompactMask;
+import sc.fiji.maskflow.internal.CompactMaskStack;
+import sc.fiji.maskflow.internal.Detection;
+import sc.fiji.maskflow.internal.ImageMolder;
+import sc.fiji.maskflow.internal.MaskRCNNDetector;
+import sc.fiji.maskflow.internal.MaskRCNNPostprocessImage;
+import sc.fiji.maskflow.internal.MaskRCNNPreprocessImage;
+import sc.fiji.maskflow.internal.ModelConfig;
+import sc.fiji.maskflow.internal.SequentialPipeline;
+import sc.fiji.maskflow.internal.SessionConfig;
+import sc.fiji.maskflow.internal.StreamingPipeline;
+import sc.fiji.maskflow.internal.TensorScope;
+import sc.fiji.maskflow.internal.TileGrid;
+import sc.fiji.maskflow.utils.TensorUtils;
+
+/**
+ * Detect objects with a model from plain Java code.
+ * <p>
+ * The engine resolves the model once and calls the preprocessing, detection
+ * and postprocessing graphs directly on the sessions kept by the
+ * {@link ModelService}, without going through the SciJava module machinery for
+ * every frame. {@link ObjectsDetector} is a thin command around it.
+ * <p>
+ * Engines are cheap: graphs, sessions and parameters are shared by all the
+ * engines of a context. An engine runs one detection at a time but several
+ * engines of the same model can run in parallel.
+ *
+ * <pre>
+ * MaskflowEngine engine = new MaskflowEngine(context, location, "microtubule-v0.1");
+ * MaskflowEngine.Result result = engine.detectStack(stack);
+ * DetectionTable table = result.getTable();
+ * </pre>
+ */
+public class MaskflowEngine {
+
+	private static final List<String> DETECTION_OUTPUTS = Arrays.asList("detections",
+		"mrcnn_mask", "mrcnn_class", "mrcnn_bbox", "rois");
+
+	// Fraction of the smallest mask two detections of different tiles must share
+	// to be merged.
+	private static final double TILE_MERGE_THRESHOLD = 0.5;
+
+	@Parameter
+	private ModelService modelService;
+
+	@Parameter
+	private LogService log;
+
+	@Parameter
+	private StatusService ss;
+
+	@Parameter
+	private MetricsService metrics;
+
+	private final Location modelLocation;
+	private final String modelName;
+	private final ModelConfig config;
+
+	private int batchSize = 0;
+	private boolean streaming = false;
+	private int queueDepth = 4;
+	private boolean javaPreprocessing = false;
+	private int parallelSessions = 1;
+	private SessionConfig sessionConfig = SessionConfig.DEFAULT;
+	private boolean tiling = false;
+	private int tileOverlap = 64;
+	private boolean runLengthMasks = false;
+
+	private ImageMolder molder;
+
+	// State of the running detection.
+	private RandomAccessibleInterval<? extends RealType<?>> stack;
+	private TileGrid tileGrid;
+
+	/**
+	 * @param context The context keeping the model sessions.
+	 * @param modelLocation The location of the model ZIP file.
+	 * @param modelName The name used to cache the model on disk.
+	 */
+	public MaskflowEngine(Context context, Location modelLocation, String modelName)
+		throws IOException
+	{
+		context.inject(this);
+		this.modelLocation = modelLocation;
+		this.modelName = modelName;
+		this.config = modelService.getConfig(modelLocation, modelName);
+	}
+
+	/**
+	 * Number of frames sent at once to the detection model. Use 0 to use the
+	 * batch size the model has been exported with.
+	 */
+	public MaskflowEngine setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	/**
+	 * Stream frames through the three stages instead of running each stage over
+	 * the whole stack.
+	 */
+	public MaskflowEngine setStreaming(boolean streaming) {
+		this.streaming = streaming;
+		return this;
+	}
+
+	/** Maximum number of frames waiting between two stages in streaming mode. */
+	public MaskflowEngine setQueueDepth(int queueDepth) {
+		this.queueDepth = queueDepth;
+		return this;
+	}
+
+	/** Mold images in Java instead of running the preprocessing graph. */
+	public MaskflowEngine setJavaPreprocessing(boolean javaPreprocessing) {
+		this.javaPreprocessing = javaPreprocessing;
+		return this;
+	}
+
+	/** Number of detection sessions running frames in parallel. */
+	public MaskflowEngine setParallelSessions(int parallelSessions) {
+		this.parallelSessions = Math.max(parallelSessions, 1);
+		return this;
+	}
+
+	/** Thread settings of the detection sessions. */
+	public MaskflowEngine setSessionConfig(SessionConfig sessionConfig) {
+		this.sessionConfig = sessionConfig;
+		return this;
+	}
+
+	/**
+	 * Cut frames larger than the model input into overlapping tiles. Only the
+	 * tensors of the tiles of a frame are alive at once, or of queueDepth tiles
+	 * in streaming mode, so the memory used does not depend on the number of
+	 * frames.
+	 */
+	public MaskflowEngine setTiling(boolean tiling, int tileOverlap) {
+		this.tiling = tiling;
+		this.tileOverlap = tileOverlap;
+		return this;
+	}
+
+	/** Store masks as runs instead of bits. */
+	public MaskflowEngine setRunLengthMasks(boolean runLengthMasks) {
+		this.runLengthMasks = runLengthMasks;
+		return this;
+	}
+
+	public ModelConfig getConfig() {
+		return config;
+	}
+
+	/**
+	 * Check an image or a stack can be processed with the current settings.
+	 *
+	 * @throws IllegalArgumentException When it can't.
+	 */
+	public void checkInput(RandomAccessibleInterval<? extends RealType<?>> image) {
+		if (image.numDimensions() != 2 && image.numDimensions() != 3) {
+			throw new IllegalArgumentException("Input image must have 2 or 3 dimensions.");
+		}
+
+		int maxSize = config.getImageMaxDim();
+		if (tiling) {
+			if (this.tileOverlap < 0 || this.tileOverlap >= maxSize / 2) {
+				throw new IllegalArgumentException("Tile overlap must be between 0 and " + (maxSize / 2 -
+					1) + " pixels.");
+			}
+			return;
+		}
+
+		if (image.dimension(0) > maxSize) {
+			throw new IllegalArgumentException("Width cannot be greater than " + maxSize +
+				" pixels.");
+		}
+		if (image.dimension(1) > maxSize) {
+			throw new IllegalArgumentException("Height cannot be greater than " + maxSize +
+				" pixels.");
+		}
+	}
+
+	/** Detect objects in a 2D image. */
+	public Result detect(RandomAccessibleInterval<? extends RealType<?>> image)
+		throws IOException, InterruptedException, ExecutionException
+	{
+		if (image.numDimensions() != 2) {
+			throw new IllegalArgumentException("Image must have 2 dimensions.");
+		}
+		return this.detectStack(image);
+	}
+
+	/**
+	 * Detect objects in all the frames of a stack.
+	 *
+	 * @param stack A X, Y, T stack. A 2D image is a stack of a single frame.
+	 */
+	public synchronized Result detectStack(RandomAccessibleInterval<? extends RealType<?>> stack)
+		throws IOException, InterruptedException, ExecutionException
+	{
+		this.checkInput(stack);
+
+		this.stack = stack;
+		this.tileGrid = this.createTileGrid();
+		if (javaPreprocessing && this.molder == null) {
+			this.molder = this.createMolder();
+		}
+
+		try {
+			return this.runPrediction();
+		}
+		finally {
+			this.stack = null;
+			this.tileGrid = null;
+		}
+	}
+
+	/**
+	 * Run an image once through every detection session so the sessions of the
+	 * current settings are created and initialized before a real detection.
+	 * Sessions of other settings are not touched.
+	 *
+	 * @param image A X, Y image.
+	 */
+	public synchronized void warmUp(RandomAccessibleInterval<? extends RealType<?>> image)
+		throws IOException
+	{
+		this.checkInput(image);
+
+		this.stack = image;
+		this.tileGrid = this.createTileGrid();
+		if (javaPreprocessing && this.molder == null) {
+			this.molder = this.createMolder();
+		}
+
+		try {
+			// Batches are dispatched to the first free session so each session is
+			// run explicitly.
+			int batchSize = this.getBatchSize();
+			for (int session = 0; session < this.parallelSessions; session++) {
+				List<Map<String, Tensor<?>>> outputs = this.detectFrames(Collections.singletonList(
+					this.preprocessFrame(0)), batchSize, session);
+				this.postprocessFrame(0, outputs.get(0));
+			}
+		}
+		finally {
+			this.stack = null;
+			this.tileGrid = null;
+		}
+	}
+
+	/**
+	 * Detect objects in a stack without keeping the results in memory.
+	 * <p>
+	 * Frames are read and processed chunkSize frames at a time and the
+	 * detections of every frame are handed to the consumer in frame order. Only
+	 * the frames of a single chunk are alive at any time so the memory used does
+	 * not depend on the number of frames when the stack is read lazily, like a
+	 * cell image.
+	 *
+	 * @param stack A X, Y, T stack. A 2D image is a stack of a single frame.
+	 * @param chunkSize Number of frames processed at once.
+	 * @param consumer Receives the detections of every frame.
+	 */
+	public synchronized void detectStack(RandomAccessibleInterval<? extends RealType<?>> stack,
+		int chunkSize, FrameConsumer consumer) throws IOException, InterruptedException,
+		ExecutionException
+	{
+		this.checkInput(stack);
+		if (javaPreprocessing && this.molder == null) {
+			this.molder = this.createMolder();
+		}
+
+		try {
+			forEachChunk(stack, chunkSize, chunk -> {
+				this.stack = chunk;
+				this.tileGrid = this.createTileGrid();
+				return this.predictFrames();
+			}, consumer);
+		}
+		finally {
+			this.stack = null;
+			this.tileGrid = null;
+		}
+	}
+
+	/** Build the table of a list of detections. */
+	public DetectionTable createTable(List<Detection> detections) {
+		long start = metrics.start();
+
+		List<String> classLabels = config.getClassNames();
+		DetectionTable table = new DetectionTable();
+
+		for (Detection detection : detections) {
+			table.addRow(detection.getFrame(), detection.getClassId(), classLabels.get(detection
+				.getClassId()), detection.getScore(), detection.getX(), detection.getY(), detection
+					.getWidth(), detection.getHeight());
+		}
+
+		metrics.stop(MetricsService.TABLE_BUILDING, start);
+		return table;
+	}
+
+	/**
+	 * Build the X, Y, N stack of masks of a list of detections. Pixels are
+	 * computed on access from the compact masks.
+	 */
+	public Img<BitType> createMasks(List<Detection> detections, long width, long height) {
+		long start = metrics.start();
+		List<CompactMask> compactMasks = new ArrayList<>(detections.size());
+		for (Detection detection : detections) {
+			compactMasks.add(detection.getMask());
+		}
+		CompactMaskStack stack = new CompactMaskStack(width, height, compactMasks);
+		Img<BitType> masks = ImgView.wrap(stack, new ArrayImgFactory<>(new BitType()));
+		metrics.stop(MetricsService.MASK_ASSEMBLY, start);
+		return masks;
+	}
+
+	/** Receives the detections of a stack frame by frame. */
+	public interface FrameConsumer {
+
+		/**
+		 * @param frame The frame in the stack.
+		 * @param detections The detections of the frame, by decreasing score.
+		 */
+		void accept(int frame, List<Detection> detections) throws IOException;
+	}
+
+	/** Predicts the detections of the frames of a chunk. */
+	interface ChunkPredictor {
+
+		/**
+		 * @param chunk A X, Y, T stack starting at frame 0.
+		 * @return The detections of every frame of the chunk, in the frames of the
+		 *         chunk.
+		 */
+		List<List<Detection>> predict(RandomAccessibleInterval<? extends RealType<?>> chunk)
+			throws InterruptedException, ExecutionException;
+	}
+
+	/**
+	 * Cut a stack in chunks of chunkSize frames, the last one possibly smaller,
+	 * predict them one after the other and hand the detections to the consumer
+	 * with their frames in the stack.
+	 */
+	static void forEachChunk(RandomAccessibleInterval<? extends RealType<?>> stack,
+		int chunkSize, ChunkPredictor predictor, FrameConsumer consumer) throws IOException,
+		InterruptedException, ExecutionException
+	{
+		long nFrames = stack.numDimensions() == 3 ? stack.dimension(2) : 1;
+		chunkSize = Math.max(chunkSize, 1);
+		for (long start = 0; start < nFrames; start += chunkSize) {
+			long end = Math.min(start + chunkSize, nFrames);
+			RandomAccessibleInterval<? extends RealType<?>> chunk = stack;
+			if (stack.numDimensions() == 3) {
+				long[] min = new long[] { stack.min(0), stack.min(1), stack.min(2) + start };
+				long[] max = new long[] { stack.max(0), stack.max(1), stack.min(2) + end - 1 };
+				chunk = Views.zeroMin(Views.interval(stack, min, max));
+			}
+
+			List<List<Detection>> frames = predictor.predict(chunk);
+			for (int i = 0; i < frames.size(); i++) {
+				List<Detection> detections = new ArrayList<>(frames.get(i).size());
+				for (Detection detection : frames.get(i)) {
+					detections.add(detection.withFrame((int) start + i));
+				}
+				consumer.accept((int) start + i, detections);
+			}
+		}
+	}
+
+	/** The detections of an image or a stack. */
+	public static class Result {
+
+		private final List<Detection> detections;
+		private final DetectionTable table;
+		private final Img<BitType> masks;
+
+		private Result(List<Detection> detections, DetectionTable table, Img<BitType> masks) {
+			this.detections = detections;
+			this.table = table;
+			this.masks = masks;
+		}
+
+		/** The detections, frame by frame and by decreasing score. */
+		public List<Detection> getDetections() {
+			return detections;
+		}
+
+		public DetectionTable getTable() {
+			return table;
+		}
+
+		/** The masks, one plane per row of the table, or null without detections. */
+		public Img<BitType> getMasks() {
+			return masks;
+		}
+	}
+
+	// -- Helper methods --
+
+	private Result runPrediction() throws InterruptedException, ExecutionException {
+
+		List<Detection> detections = new ArrayList<>();
+		for (List<Detection> frameDetections : this.predictFrames()) {
+			detections.addAll(frameDetections);
+		}
+
+		if (detections.isEmpty()) {
+			return new Result(detections, new DetectionTable(), null);
+		}
+		return new Result(detections, this.createTable(detections), this.createMasks(detections,
+			this.stack.dimension(0), this.stack.dimension(1)));
+	}
+
+	/** Get the detections of every frame of the stack. */
+	private List<List<Detection>> predictFrames() throws InterruptedException,
+		ExecutionException
+	{
+
+		// How many images to process ?
+		long nImages;
+		if (this.stack.numDimensions() == 3) {
+			nImages = this.stack.dimension(2);
+		}
+		else {
+			nImages = 1;
+		}
+
+		// Images sent to the model are the tiles of every frame, frame by frame.
+		int nTiles = this.tileGrid.size();
+		if (nTiles > 1) {
+			log.info("Frames are cut into " + nTiles + " tiles.");
+		}
+
+		List<List<Detection>> imageDetections;
+		if (streaming) {
+			imageDetections = this.runStreamingPrediction((int) nImages * nTiles);
+		}
+		else {
+			imageDetections = this.runSequentialPrediction((int) nImages * nTiles);
+		}
+
+		// Merge the detections of the tiles of each frame.
+		List<List<Detection>> frames = new ArrayList<>();
+		for (int i = 0; i < nImages; i++) {
+			List<Detection> frameDetections = this.tileGrid.merge(imageDetections.subList(i * nTiles,
+				(i + 1) * nTiles), TILE_MERGE_THRESHOLD);
+			metrics.record(MetricsService.OBJECTS_PER_FRAME, frameDetections.size());
+			frames.add(frameDetections);
+		}
+		metrics.count(MetricsService.FRAMES, nImages);
+		return frames;
+	}
+
+	private List<List<Detection>> runSequentialPrediction(int nImages)
+		throws InterruptedException, ExecutionException
+	{
+		log.info("Running detection.");
+		double startTime = System.currentTimeMillis();
+
+		int batchSize = this.getBatchSize();
+		AtomicInteger done = new AtomicInteger();
+
+		// Each stage runs over all the images before the next one, except with
+		// tiles: the tiles of a frame go through the three stages before the next
+		// frame is preprocessed so the memory used is set by the tiles of a frame
+		// instead of the number of frames. Java molding is thread-safe so images
+		// are molded in parallel. When a stage fails, the tensors of the images not
+		// consumed yet are closed by the pipeline.
+		int nTiles = this.tileGrid.size();
+		SequentialPipeline<Map<String, Tensor<?>>, Map<String, Tensor<?>>, List<Detection>> pipeline =
+			new SequentialPipeline<>(nTiles > 1 ? nTiles : nImages, batchSize, parallelSessions, this.molder != null,
+				this::preprocessFrame, (worker, frames) -> this.detectFrames(frames, batchSize,
+					worker), (position, frame) -> {
+						List<Detection> detections = this.postprocessFrame(position, frame);
+						ss.showStatus(done.incrementAndGet(), nImages, "Running detection.");
+						return detections;
+					}, frame -> TensorScope.closeAll(frame.values()), frame -> TensorScope.closeAll(
+						frame.values()));
+
+		List<List<Detection>> detections = pipeline.run(nImages);
+
+		double elapsedTime = System.currentTimeMillis() - startTime;
+		log.info("Detection done. It tooks " + elapsedTime / 1000 + " s.");
+
+		return detections;
+	}
+
+	private List<List<Detection>> runStreamingPrediction(int nImages)
+		throws InterruptedException, ExecutionException
+	{
+		log.info("Running detection (streaming).");
+		double startTime = System.currentTimeMillis();
+
+		int batchSize = this.getBatchSize();
+		AtomicInteger done = new AtomicInteger();
+
+		// Intermediate tensors are closed by the stage consuming them so only
+		// queueDepth frames are alive at any time between two stages. When a stage
+		// fails, the frames left in the queues are closed by the pipeline.
+		StreamingPipeline<Map<String, Tensor<?>>, Map<String, Tensor<?>>, List<Detection>> pipeline =
+			new StreamingPipeline<>(queueDepth, batchSize, parallelSessions, this::preprocessFrame, (
+				worker, frames) -> this.detectFrames(frames, batchSize, worker), (position, frame) -> {
+					List<Detection> detections = this.postprocessFrame(position, frame);
+					ss.showStatus(done.incrementAndGet(), nImages, "Running detection.");
+					return detections;
+				}, frame -> TensorScope.closeAll(frame.values()), frame -> TensorScope.closeAll(frame
+					.values()));
+
+		List<List<Detection>> detections = pipeline.run(nImages);
+
+		double elapsedTime = System.currentTimeMillis() - startTime;
+		log.info("Streaming detection done. It tooks " + elapsedTime / 1000 + " s.");
+
+		return detections;
+	}
+
+	private Map<String, Tensor<?>> preprocessFrame(int position) {
+		long start = metrics.start();
+		Map<String, Tensor<?>> outputs;
+		if (this.molder != null) {
+			outputs = this.molder.mold(this.getFrame(position));
+		}
+		else {
+			outputs = this.runPreprocessing(position);
+		}
+		this.countBytes(outputs.values());
+		metrics.stop(MetricsService.PREPROCESS, start);
+		return outputs;
+	}
+
+	private Map<String, Tensor<?>> runPreprocessing(int position) {
+		Map<String, Tensor<?>> outputs;
+		long copyStart = metrics.start();
+		try (Tensor<Float> image = this.toTensor(this.getFrame(position))) {
+			metrics.stop(MetricsService.PREPROCESS + MetricsService.COPY, copyStart);
+
+			long sessionStart = metrics.start();
+			outputs = MaskRCNNPreprocessImage.preprocess(this.getSession(
+				MaskRCNNPreprocessImage.MODEL_FILENAME), config, image);
+			metrics.stop(MetricsService.PREPROCESS + MetricsService.SESSION, sessionStart);
+		}
+
+		// The anchors of the first frame are cached and shared by all the frames.
+		Tensor<?> anchors = outputs.remove("anchors");
+		long[] moldedShape = outputs.get("moldedImage").shape();
+		Tensor<?> sharedAnchors = this.modelService.getAnchorCache().get(this.config,
+			moldedShape[0], moldedShape[1], 1, () -> anchors);
+		if (sharedAnchors != anchors) {
+			anchors.close();
+		}
+		return outputs;
+	}
+
+	private List<Map<String, Tensor<?>>> detectFrames(List<Map<String, Tensor<?>>> frames,
+		int batchSize, int sessionIndex)
+	{
+		List<Tensor<?>> moldedImages = new ArrayList<>();
+		List<Tensor<?>> imageMetadata = new ArrayList<>();
+		for (Map<String, Tensor<?>> frame : frames) {
+			moldedImages.add(frame.get("moldedImage"));
+			imageMetadata.add(frame.get("imageMetadata"));
+		}
+
+		// The stage owns its inputs so they are all released when it fails, with the
+		// outputs already made.
+		Map<String, List<Tensor<?>>> batchOutputs = null;
+		try {
+			batchOutputs = this.detectBatch(moldedImages, imageMetadata, batchSize, sessionIndex);
+
+			List<Map<String, Tensor<?>>> outputs = new ArrayList<>();
+			for (int i = 0; i < frames.size(); i++) {
+				Map<String, Tensor<?>> output = new HashMap<>();
+				for (String name : DETECTION_OUTPUTS) {
+					output.put(name, batchOutputs.get(name).get(i));
+				}
+
+				// Forward what the postprocessing needs.
+				Map<String, Tensor<?>> frame = frames.get(i);
+				output.put("originalImageShape", frame.get("originalImageShape"));
+				output.put("imageShape", frame.get("imageShape"));
+				output.put("windows", frame.get("windows"));
+				outputs.add(output);
+			}
+
+			// And release the rest.
+			TensorScope.closeAll(moldedImages);
+			TensorScope.closeAll(imageMetadata);
+
+			return outputs;
+		}
+		catch (RuntimeException | Error exc) {
+			for (Map<String, Tensor<?>> frame : frames) {
+				TensorScope.closeAll(frame.values());
+			}
+			if (batchOutputs != null) {
+				for (List<Tensor<?>> tensors : batchOutputs.values()) {
+					TensorScope.closeAll(tensors);
+				}
+			}
+			throw exc;
+		}
+	}
+
+	private Map<String, List<Tensor<?>>> detectBatch(List<Tensor<?>> moldedImages,
+		List<Tensor<?>> imageMetadata, int batchSize, int sessionIndex)
+	{
+		long start = metrics.start();
+		Map<String, List<Tensor<?>>> outputs = new HashMap<>();
+		int n = moldedImages.size();
+		Session session = this.getDetectionSession(sessionIndex);
+
+		// Anchors are shared by all the frames and owned by the cache. They always
+		// have a batch dimension so they are fed without a copy.
+		long[] moldedShape = moldedImages.get(0).shape();
+		Tensor<?> anchors = this.modelService.getAnchorCache().getBatch(this.config,
+			moldedShape[0], moldedShape[1], batchSize, null);
+
+		if (batchSize == 1) {
+			long sessionStart = metrics.start();
+			Map<String, Tensor<?>> result = MaskRCNNDetector.detect(session, moldedImages.get(0),
+				imageMetadata.get(0), anchors, false);
+			metrics.stop(MetricsService.DETECT + MetricsService.SESSION, sessionStart);
+			this.countBytes(result.values());
+
+			for (String name : DETECTION_OUTPUTS) {
+				outputs.put(name, Collections.singletonList(result.get(name)));
+			}
+			metrics.stop(MetricsService.DETECT, start);
+			return outputs;
+		}
+
+		// The batch size is part of the exported graph so an incomplete batch is
+		// padded with the last frame and the extra outputs are dropped.
+		List<Tensor<?>> paddedImages = new ArrayList<>(moldedImages);
+		List<Tensor<?>> paddedMetadata = new ArrayList<>(imageMetadata);
+		while (paddedImages.size() < batchSize) {
+			paddedImages.add(moldedImages.get(n - 1));
+			paddedMetadata.add(imageMetadata.get(n - 1));
+		}
+
+		try (TensorScope scope = new TensorScope()) {
+			long copyStart = metrics.start();
+			Tensor<?> batchImages = scope.track(TensorUtils.stack(paddedImages));
+			Tensor<?> batchMetadata = scope.track(TensorUtils.stack(paddedMetadata));
+			metrics.stop(MetricsService.DETECT + MetricsService.COPY, copyStart);
+
+			long sessionStart = metrics.start();
+			Map<String, Tensor<?>> result = MaskRCNNDetector.detect(session, batchImages,
+				batchMetadata, anchors, true);
+			metrics.stop(MetricsService.DETECT + MetricsService.SESSION, sessionStart);
+			scope.trackAll(result.values());
+			this.countBytes(result.values());
+
+			// The split outputs are tracked until they are all made. The ones of the
+			// padding frames are closed with the scope.
+			copyStart = metrics.start();
+			for (String name : DETECTION_OUTPUTS) {
+				List<Tensor<?>> parts = TensorUtils.split(result.get(name));
+				scope.trackAll(parts);
+				outputs.put(name, new ArrayList<>(parts.subList(0, n)));
+			}
+			for (List<Tensor<?>> parts : outputs.values()) {
+				parts.forEach(scope::detach);
+			}
+			metrics.stop(MetricsService.DETECT + MetricsService.COPY, copyStart);
+		}
+		metrics.stop(MetricsService.DETECT, start);
+		return outputs;
+	}
+
+	private List<Detection> postprocessFrame(int position, Map<String, Tensor<?>> frame) {
+		// Detections are copied out of the postprocessing outputs, in frame
+		// coordinates.
+		long start = metrics.start();
+		try (TensorScope scope = new TensorScope()) {
+			scope.trackAll(frame.values());
+
+			long sessionStart = metrics.start();
+			Map<String, Tensor<?>> outputs = MaskRCNNPostprocessImage.postprocess(this.getSession(
+				MaskRCNNPostprocessImage.MODEL_FILENAME), frame.get("detections"), frame.get(
+					"mrcnn_mask"), frame.get("originalImageShape"), frame.get("imageShape"), frame.get(
+						"windows"));
+			metrics.stop(MetricsService.POSTPROCESS + MetricsService.SESSION, sessionStart);
+			scope.trackAll(outputs.values());
+			this.countBytes(outputs.values());
+
+			long copyStart = metrics.start();
+			Interval tile = this.getTile(position);
+			List<Detection> detections = Detection.fromTensors(position / this.tileGrid.size(),
+				(int) tile.min(0), (int) tile.min(1), outputs.get("rois"), outputs.get("scores"),
+				outputs.get("class_ids"), outputs.get("masks"), runLengthMasks);
+			metrics.stop(MetricsService.POSTPROCESS + MetricsService.COPY, copyStart);
+			return detections;
+		}
+		finally {
+			metrics.stop(MetricsService.POSTPROCESS, start);
+		}
+	}
+
+	private Session getSession(String graphFilename) {
+		try {
+			return modelService.getSession(modelLocation, modelName, graphFilename);
+		}
+		catch (IOException exc) {
+			throw new IllegalStateException("Can't load " + graphFilename + ": " + exc.getMessage(),
+				exc);
+		}
+	}
+
+	private Session getDetectionSession(int sessionIndex) {
+		try {
+			return modelService.getSession(modelLocation, modelName, MaskRCNNDetector.MODEL_FILENAME,
+				sessionConfig, sessionIndex);
+		}
+		catch (IOException exc) {
+			throw new IllegalStateException("Can't load " + MaskRCNNDetector.MODEL_FILENAME + ": " +
+				exc.getMessage(), exc);
+		}
+	}
+
+	private Interval getTile(int position) {
+		return this.tileGrid.getTiles().get(position % this.tileGrid.size());
+	}
+
+	private RandomAccessibleInterval<? extends RealType<?>> getFrame(int position) {
+		RandomAccessibleInterval<? extends RealType<?>> frame;
+		if (this.stack.numDimensions() == 3) {
+			frame = Views.hyperSlice(this.stack, 2, position / this.tileGrid.size());
+		}
+		else {
+			frame = this.stack;
+		}
+
+		if (this.tileGrid.size() == 1) {
+			return frame;
+		}
+		return Views.zeroMin(Views.interval(frame, this.getTile(position)));
+	}
+
+	private Tensor<Float> toTensor(RandomAccessibleInterval<? extends RealType<?>> frame) {
+		@SuppressWarnings("unchecked")
+		RandomAccessibleInterval<RealType<?>> source = (RandomAccessibleInterval<RealType<?>>) frame;
+		RandomAccessibleInterval<FloatType> floats = Converters.convert(source, (input,
+			output) -> output.setReal(input.getRealFloat()), new FloatType());
+		return Tensors.tensorFloat(floats);
+	}
+
+	// Count the memory allocated by TensorFlow for the outputs of a stage.
+	private void countBytes(Iterable<? extends Tensor<?>> tensors) {
+		if (!metrics.isEnabled()) return;
+		long bytes = 0;
+		for (Tensor<?> tensor : tensors) {
+			bytes += tensor.numBytes();
+		}
+		metrics.count(MetricsService.TENSOR_BYTES, bytes);
+	}
+
+	private int getBatchSize() {
+		int modelBatchSize = this.config.getBatchSize();
+		if (this.batchSize <= 0) {
+			return modelBatchSize;
+		}
+		if (this.batchSize != modelBatchSize) {
+			log.warn("The model has been exported with a batch size of " + modelBatchSize +
+				". Using a batch size of " + this.batchSize + " might fail.");
+		}
+		return this.batchSize;
+	}
+
+	private TileGrid createTileGrid() {
+		long width = this.stack.dimension(0);
+		long height = this.stack.dimension(1);
+		if (tiling) {
+			// Tiles have the size of the model input so they are not downscaled.
+			return new TileGrid(width, height, this.config.getImageMaxDim(), tileOverlap);
+		}
+		return new TileGrid(width, height);
+	}
+
+	private ImageMolder createMolder() throws IOException {
+		// The window must have the type expected by the postprocessing graph.
+		Operation window = modelService.getGraph(this.modelLocation, this.modelName,
+			MaskRCNNPostprocessImage.MODEL_FILENAME).operation("window");
+		DataType windowType = window != null ? window.output(0).dataType() : DataType.INT32;
+		return new ImageMolder(this.config, windowType);
+	}
+
+}
@@ -0,0 +1,57 @@
+
+package sc.fiji.maskflow;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.scijava.ItemIO;
+import org.scijava.command.Command;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.table.GenericTable;
+
+@Plugin(type = Command.class, menuPath = "Plugins>Maskflow>Show Metrics", headless = true)
+public class MetricsReport implements Command {
+
+	@Parameter
+	private LogService log;
+
+	@Parameter
+	private MetricsService metrics;
+
+	@Parameter(required = false, label = "JSON File",
+		description = "Also write the metrics to this file as JSON.")
+	private File jsonFile = null;
+
+	@Parameter(required = false, label = "Reset",
+		description = "Forget the recorded metrics once reported.")
+	private boolean reset = false;
+
+	@Parameter(type = ItemIO.OUTPUT)
+	private GenericTable table;
+
+	@Override
+	public void run() {
+		if (!metrics.isEnabled()) {
+			log.warn("Metrics are disabled. Set the " + MetricsService.METRICS_PROPERTY +
+				" property to true to record them.");
+		}
+
+		this.table = metrics.toTable();
+
+		if (jsonFile != null) {
+			try {
+				metrics.writeJson(jsonFile);
+			}
+			catch (IOException exc) {
+				log.error("Can't write the metrics to " + jsonFile + ": " + exc);
+			}
+		}
+
+		if (reset) {
+			metrics.reset();
+		}
+	}
+
+}
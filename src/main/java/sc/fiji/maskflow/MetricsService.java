@@ -0,0 +1,231 @@
+
+package sc.fiji.maskflow;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.prefs.PrefService;
+import org.scijava.service.AbstractService;
+import org.scijava.service.Service;
+import org.scijava.table.DefaultGenericTable;
+import org.scijava.table.GenericTable;
+
+import net.imagej.ImageJService;
+import sc.fiji.maskflow.internal.Histogram;
+
+/**
+ * Record how long each stage of the detection and tracking takes, frame by
+ * frame, and a few counters.
+ * <p>
+ * Durations are recorded in microseconds in a {@link Histogram} per stage.
+ * Metrics are disabled by default and then cost a single volatile read per
+ * call. They are enabled with {@link #setEnabled(boolean)} or the
+ * {@value #METRICS_PROPERTY} system property or preference.
+ *
+ * <pre>
+ * long start = metrics.start();
+ * ...
+ * metrics.stop(MetricsService.PREPROCESS, start);
+ * </pre>
+ */
+@Plugin(type = Service.class)
+public class MetricsService extends AbstractService implements ImageJService {
+
+	public static final String METRICS_PROPERTY = "maskflow.metrics";
+
+	// Stages, timed per frame or per batch.
+	public static final String PREPROCESS = "preprocess";
+	public static final String DETECT = "detect";
+	public static final String POSTPROCESS = "postprocess";
+	public static final String MASK_ASSEMBLY = "mask_assembly";
+	public static final String TABLE_BUILDING = "table_building";
+	public static final String SPOT_BUILDING = "spot_building";
+	public static final String LINKING = "linking";
+	public static final String ROI_FILLING = "roi_filling";
+
+	// Parts of a stage: running the session and copying data in and out of
+	// tensors.
+	public static final String SESSION = ".session";
+	public static final String COPY = ".copy";
+
+	public static final String OBJECTS_PER_FRAME = "objects_per_frame";
+	public static final String FRAMES = "frames";
+	public static final String TENSOR_BYTES = "tensor_bytes";
+
+	private static final String TIME_UNIT = "us";
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99 };
+
+	@Parameter(required = false)
+	private PrefService prefService;
+
+	private volatile boolean enabled = false;
+
+	private final Map<String, Histogram> histograms = new ConcurrentSkipListMap<>();
+	private final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+
+	@Override
+	public void initialize() {
+		String property = System.getProperty(METRICS_PROPERTY);
+		if (property == null && prefService != null) {
+			property = prefService.get(MetricsService.class, METRICS_PROPERTY, "false");
+		}
+		enabled = Boolean.parseBoolean(property);
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/** Start timing a stage. Returns 0 when metrics are disabled. */
+	public long start() {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	/** Record the time elapsed since {@link #start()} for a stage. */
+	public void stop(String stage, long start) {
+		if (start == 0 || !enabled) return;
+		histogram(stage, TIME_UNIT).record((System.nanoTime() - start) / 1000);
+	}
+
+	/** Record a value in the histogram of a metric. */
+	public void record(String name, long value) {
+		if (!enabled) return;
+		histogram(name, "").record(value);
+	}
+
+	/** Add to a counter. */
+	public void count(String name, long delta) {
+		if (!enabled) return;
+		counters.computeIfAbsent(name, n -> new LongAdder()).add(delta);
+	}
+
+	/** Get the histogram of a metric or null when nothing has been recorded. */
+	public Histogram getHistogram(String name) {
+		return histograms.get(name);
+	}
+
+	/** Get the value of a counter. */
+	public long getCounter(String name) {
+		LongAdder counter = counters.get(name);
+		return counter != null ? counter.sum() : 0;
+	}
+
+	/** Forget all the recorded values. */
+	public void reset() {
+		histograms.clear();
+		counters.clear();
+	}
+
+	/**
+	 * Get the metrics as a table with a row per metric. Counters only have a
+	 * count.
+	 */
+	public GenericTable toTable() {
+		GenericTable table = new DefaultGenericTable();
+		String[] headers = { "metric", "unit", "count", "sum", "min", "mean", "p50", "p90", "p99",
+			"max" };
+		for (String header : headers) {
+			table.appendColumn(header);
+		}
+
+		for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+			Histogram histogram = entry.getValue();
+			int row = appendRow(table, entry.getKey(), histogram.getUnit(), histogram.getCount());
+			table.set("sum", row, histogram.getSum());
+			table.set("min", row, histogram.getMin());
+			table.set("mean", row, histogram.getMean());
+			for (double quantile : QUANTILES) {
+				table.set(quantileName(quantile), row, histogram.getQuantile(quantile));
+			}
+			table.set("max", row, histogram.getMax());
+		}
+
+		for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+			appendRow(table, entry.getKey(), "", entry.getValue().sum());
+		}
+		return table;
+	}
+
+	/** Get the metrics as a JSON object. */
+	public String toJson() {
+		StringBuilder json = new StringBuilder("{\n  \"histograms\": {");
+		String separator = "\n";
+		for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+			Histogram histogram = entry.getValue();
+			json.append(separator).append("    ").append(quote(entry.getKey())).append(": {");
+			json.append("\"unit\": ").append(quote(histogram.getUnit()));
+			json.append(", \"count\": ").append(histogram.getCount());
+			json.append(", \"sum\": ").append(histogram.getSum());
+			json.append(", \"min\": ").append(histogram.getMin());
+			json.append(", \"mean\": ").append(String.format(Locale.ROOT, "%.3f", histogram
+				.getMean()));
+			for (double quantile : QUANTILES) {
+				json.append(", \"").append(quantileName(quantile)).append("\": ").append(histogram
+					.getQuantile(quantile));
+			}
+			json.append(", \"max\": ").append(histogram.getMax()).append("}");
+			separator = ",\n";
+		}
+		json.append("\n  },\n  \"counters\": {");
+		separator = "\n";
+		for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+			json.append(separator).append("    ").append(quote(entry.getKey())).append(": ").append(
+				entry.getValue().sum());
+			separator = ",\n";
+		}
+		return json.append("\n  }\n}\n").toString();
+	}
+
+	/** Write the metrics to a JSON file. */
+	public void writeJson(File file) throws IOException {
+		Files.write(file.toPath(), toJson().getBytes(StandardCharsets.UTF_8));
+	}
+
+	// -- Helper methods --
+
+	private Histogram histogram(String name, String unit) {
+		return histograms.computeIfAbsent(name, n -> new Histogram(unit));
+	}
+
+	private static int appendRow(GenericTable table, String name, String unit, long count) {
+		table.appendRow();
+		int row = table.getRowCount() - 1;
+		table.set("metric", row, name);
+		table.set("unit", row, unit);
+		table.set("count", row, count);
+		return row;
+	}
+
+	private static String quantileName(double quantile) {
+		return "p" + Math.round(quantile * 100);
+	}
+
+	private static String quote(String value) {
+		StringBuilder quoted = new StringBuilder("\"");
+		for (char c : value.toCharArray()) {
+			if (c == '"' || c == '\\') {
+				quoted.append('\\').append(c);
+			}
+			else if (c < 0x20) {
+				quoted.append(String.format("\\u%04x", (int) c));
+			}
+			else {
+				quoted.append(c);
+			}
+		}
+		return quoted.append('"').toString();
+	}
+
+}
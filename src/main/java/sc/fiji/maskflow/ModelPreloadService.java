@@ -0,0 +1,172 @@
+
+package sc.fiji.maskflow;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.scijava.io.location.Location;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.prefs.PrefService;
+import org.scijava.service.AbstractService;
+import org.scijava.service.Service;
+import org.scijava.thread.ThreadService;
+
+import net.imagej.ImageJService;
+import net.imglib2.img.array.ArrayImgs;
+import sc.fiji.maskflow.internal.SessionConfig;
+
+/**
+ * Warms models in the background when the context starts so the first
+ * detection runs at steady-state speed.
+ * <p>
+ * A model is warmed by running the detection on a blank image: the model is
+ * downloaded and unpacked, its graphs imported, its sessions created and
+ * TensorFlow lazy initialization done. Models to warm are a comma separated
+ * list of packaged model names, URLs or filepaths set with the
+ * {@value #PRELOAD_PROPERTY} system property or the preference of the same
+ * name. Nothing is preloaded by default.
+ * <p>
+ * Detection sessions depend on the number of parallel sessions and on their
+ * thread settings, and only the sessions of the preload settings are warmed. A
+ * detection run with other settings still creates its sessions. The preload
+ * settings are a single session with the TensorFlow defaults unless set with
+ * the {@value #SESSIONS_PROPERTY}, {@value #INTRA_OP_THREADS_PROPERTY} and
+ * {@value #INTER_OP_THREADS_PROPERTY} system properties or given to
+ * {@link #preload(String, int, SessionConfig)}.
+ */
+@Plugin(type = Service.class)
+public class ModelPreloadService extends AbstractService implements ImageJService {
+
+	public static final String PRELOAD_PROPERTY = "maskflow.preload";
+	public static final String SESSIONS_PROPERTY = "maskflow.preload.sessions";
+	public static final String INTRA_OP_THREADS_PROPERTY = "maskflow.preload.intraOpThreads";
+	public static final String INTER_OP_THREADS_PROPERTY = "maskflow.preload.interOpThreads";
+
+	// Size of the blank image used to warm the models.
+	private static final int WARMUP_SIZE = 128;
+
+	@Parameter
+	private ThreadService threadService;
+
+	@Parameter(required = false)
+	private PrefService prefService;
+
+	@Parameter
+	private LogService log;
+
+	private final Map<String, Future<Boolean>> models = new ConcurrentHashMap<>();
+
+	@Override
+	public void initialize() {
+		String preload = System.getProperty(PRELOAD_PROPERTY);
+		if (preload == null && prefService != null) {
+			preload = prefService.get(ModelPreloadService.class, PRELOAD_PROPERTY, "");
+		}
+		if (preload == null) return;
+
+		int sessions = Integer.getInteger(SESSIONS_PROPERTY, 1);
+		SessionConfig config = new SessionConfig(Integer.getInteger(INTRA_OP_THREADS_PROPERTY, 0),
+			Integer.getInteger(INTER_OP_THREADS_PROPERTY, 0));
+		for (String model : preload.split(",")) {
+			if (!model.trim().isEmpty()) {
+				this.preload(model.trim(), sessions, config);
+			}
+		}
+	}
+
+	/**
+	 * Warm a single detection session of a model with the TensorFlow defaults in
+	 * the background. A model is only warmed once.
+	 *
+	 * @param model A packaged model name, an URL or a filepath to a ZIP file.
+	 * @return A future telling whether the model is ready.
+	 */
+	public Future<Boolean> preload(String model) {
+		return this.preload(model, 1, SessionConfig.DEFAULT);
+	}
+
+	/**
+	 * Warm a model in the background. A model is only warmed once, with the
+	 * settings of the first call.
+	 *
+	 * @param model A packaged model name, an URL or a filepath to a ZIP file.
+	 * @param parallelSessions Number of detection sessions to warm.
+	 * @param config Thread settings of the detection sessions.
+	 * @return A future telling whether the model is ready.
+	 */
+	public Future<Boolean> preload(String model, int parallelSessions, SessionConfig config) {
+		return models.computeIfAbsent(model, m -> threadService.run(() -> this.warmUp(m,
+			parallelSessions, config)));
+	}
+
+	/** Whether a model has been warmed successfully. */
+	public boolean isReady(String model) {
+		Future<Boolean> future = models.get(model);
+		if (future == null || !future.isDone()) {
+			return false;
+		}
+		try {
+			return future.get();
+		}
+		catch (InterruptedException | ExecutionException exc) {
+			return false;
+		}
+	}
+
+	/**
+	 * Wait for a model to be warmed. Returns right away if the model is not
+	 * being preloaded.
+	 *
+	 * @return Whether the model is ready.
+	 */
+	public boolean awaitReady(String model) throws InterruptedException {
+		Future<Boolean> future = models.get(model);
+		if (future == null) {
+			return false;
+		}
+		try {
+			return future.get();
+		}
+		catch (ExecutionException exc) {
+			return false;
+		}
+	}
+
+	/** Get the models preloaded or being preloaded. */
+	public List<String> getModels() {
+		return new ArrayList<>(models.keySet());
+	}
+
+	// -- Helper methods --
+
+	private boolean warmUp(String model, int parallelSessions, SessionConfig config) {
+		log.info("Preloading model " + model + ".");
+		double startTime = System.currentTimeMillis();
+
+		try {
+			Location location = ObjectsDetector.AVAILABLE_MODELS.containsKey(model) ? ObjectsDetector
+				.getModelLocation(null, model) : ObjectsDetector.getModelLocation(model, null);
+			MaskflowEngine engine = new MaskflowEngine(context(), location, ObjectsDetector
+				.getModelCacheName(location)).setParallelSessions(parallelSessions).setSessionConfig(
+					config);
+			engine.warmUp(ArrayImgs.floats(WARMUP_SIZE, WARMUP_SIZE));
+		}
+		catch (Exception exc) {
+			log.error("Preloading model " + model + " failed: " + exc);
+			return false;
+		}
+
+		double elapsedTime = System.currentTimeMillis() - startTime;
+		log.info("Model " + model + " ready with " + parallelSessions + " session(s). It tooks " +
+			elapsedTime / 1000 + " s.");
+		return true;
+	}
+
+}
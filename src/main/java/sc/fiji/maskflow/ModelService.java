@@ -0,0 +1,182 @@
+
+package sc.fiji.maskflow;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.scijava.io.location.Location;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.service.AbstractService;
+import org.scijava.service.Service;
+import org.tensorflow.Graph;
+import org.tensorflow.Session;
+
+import net.imagej.ImageJService;
+import sc.fiji.maskflow.internal.AnchorCache;
+import sc.fiji.maskflow.internal.ModelConfig;
+import sc.fiji.maskflow.internal.SessionConfig;
+
+/**
+ * Keeps the TensorFlow graphs and sessions and the parameters of the loaded
+ * models alive for the life of the context.
+ * <p>
+ * Graphs and sessions are keyed by the model location and the graph filename
+ * inside the model ZIP file so every frame of every run reuses the same warm
+ * session. Everything is closed when the context is disposed.
+ */
+@Plugin(type = Service.class)
+public class ModelService extends AbstractService implements ImageJService {
+
+	private static final String CONFIG_FILENAME = "config.yml";
+
+	@Parameter
+	private CustomDownloadService cds;
+
+	@Parameter
+	private LogService log;
+
+	private final Map<String, Graph> graphs = new LinkedHashMap<>();
+	private final Map<String, Session> sessions = new LinkedHashMap<>();
+	private final Map<String, ModelConfig> configs = new LinkedHashMap<>();
+
+	private final AnchorCache anchorCache = new AnchorCache();
+
+	/**
+	 * Get the session of a graph stored in a model. The graph is imported and
+	 * the session created on the first call only.
+	 */
+	public Session getSession(final Location source, final String modelName,
+		final String graphFilename) throws IOException
+	{
+		return getSession(source, modelName, graphFilename, SessionConfig.DEFAULT, 0);
+	}
+
+	/**
+	 * Get one of several sessions of the same graph. Each (replica, config) pair
+	 * gets its own session so frames can be processed in parallel by sessions
+	 * with their own thread pools.
+	 */
+	public synchronized Session getSession(final Location source, final String modelName,
+		final String graphFilename, final SessionConfig config, final int replica)
+		throws IOException
+	{
+		final String key = key(source, graphFilename) + "#" + replica + "/" + config;
+		Session session = sessions.get(key);
+		if (session == null) {
+			final Graph graph = getGraph(source, modelName, graphFilename);
+			session = config.isDefault() ? new Session(graph) : new Session(graph, config
+				.toConfigProto());
+			sessions.put(key, session);
+			log.debug("Session created: " + key);
+		}
+		return session;
+	}
+
+	/**
+	 * Get a graph stored in a model. The graph is imported on the first call
+	 * only.
+	 */
+	public synchronized Graph getGraph(final Location source, final String modelName,
+		final String graphFilename) throws IOException
+	{
+		final String key = key(source, graphFilename);
+		Graph graph = graphs.get(key);
+		if (graph == null) {
+			graph = importGraph(cds.loadFile(source, modelName, graphFilename));
+			graphs.put(key, graph);
+			log.debug("Graph loaded: " + key);
+		}
+		return graph;
+	}
+
+	/**
+	 * Get the parameters of a model (config.yml). They are read and validated on
+	 * the first call only.
+	 */
+	public synchronized ModelConfig getConfig(final Location source, final String modelName)
+		throws IOException
+	{
+		final String key = key(source, CONFIG_FILENAME);
+		ModelConfig config = configs.get(key);
+		if (config == null) {
+			config = ModelConfig.load(cds.loadFile(source, modelName, CONFIG_FILENAME));
+			configs.put(key, config);
+			log.debug("Config loaded: " + key);
+		}
+		return config;
+	}
+
+	/** Get the anchors shared by all the models. */
+	public AnchorCache getAnchorCache() {
+		return anchorCache;
+	}
+
+	/**
+	 * Close all the sessions, graphs and anchors of a model. They are shared by
+	 * all the runs of the context, so this must only be called when no engine
+	 * uses the model anymore.
+	 */
+	public synchronized void release(final Location source) {
+		final String prefix = key(source, "");
+		final ModelConfig config = configs.get(key(source, CONFIG_FILENAME));
+		if (config != null) {
+			anchorCache.release(config);
+		}
+		close(sessions, prefix);
+		close(graphs, prefix);
+		close(configs, prefix);
+	}
+
+	@Override
+	public synchronized void dispose() {
+		// Sessions hold a reference on their graph so they need to be closed
+		// first.
+		close(sessions, "");
+		close(graphs, "");
+		close(configs, "");
+		anchorCache.close();
+	}
+
+	// -- Helper methods --
+
+	private String key(final Location source, final String graphFilename) {
+		return source.getURI().toString() + "!/" + graphFilename;
+	}
+
+	private Graph importGraph(final File graphFile) throws IOException {
+		final byte[] graphDef = Files.readAllBytes(graphFile.toPath());
+		final Graph graph = new Graph();
+		try {
+			graph.importGraphDef(graphDef);
+		}
+		catch (final IllegalArgumentException exc) {
+			graph.close();
+			throw new IOException("Invalid graph: " + graphFile, exc);
+		}
+		return graph;
+	}
+
+	private <T extends AutoCloseable> void close(final Map<String, T> objects,
+		final String prefix)
+	{
+		final Iterator<Map.Entry<String, T>> it = objects.entrySet().iterator();
+		while (it.hasNext()) {
+			final Map.Entry<String, T> entry = it.next();
+			if (!entry.getKey().startsWith(prefix)) continue;
+			try {
+				entry.getValue().close();
+			}
+			catch (final Exception exc) {
+				log.error("Can't close " + entry.getKey() + ": " + exc);
+			}
+			it.remove();
+		}
+	}
+
+}
@@ -3,7 +3,6 @@ package sc.fiji.maskflow;
 
 import java.io.IOException;
 import java.net.URL;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -20,26 +19,33 @@ import org.scijava.table.GenericTable;
 import fiji.plugin.trackmate.Spot;
 import fiji.plugin.trackmate.SpotCollection;
 import fiji.plugin.trackmate.tracking.LAPUtils;
-import fiji.plugin.trackmate.tracking.SpotTracker;
-import fiji.plugin.trackmate.tracking.SpotTrackerFactory;
-import fiji.plugin.trackmate.tracking.sparselap.SparseLAPTrackerFactory;
+import fiji.plugin.trackmate.tracking.TrackerKeys;
 import net.imagej.Dataset;
 import net.imagej.lut.LUTService;
 import net.imagej.ops.OpService;
-import net.imglib2.IterableInterval;
-import net.imglib2.algorithm.labeling.ConnectedComponents.StructuringElement;
 import net.imglib2.display.ColorTable;
-import net.imglib2.img.Img;
-import net.imglib2.roi.labeling.ImgLabeling;
-import net.imglib2.roi.labeling.LabelRegion;
-import net.imglib2.roi.labeling.LabelRegions;
-import net.imglib2.type.numeric.IntegerType;
-import net.imglib2.view.IntervalView;
+import sc.fiji.maskflow.internal.DeterministicLAPTracker;
+import sc.fiji.maskflow.internal.OverlapCostMatrixFactory;
+import sc.fiji.maskflow.internal.SpotExtractor;
 import sc.fiji.maskflow.utils.ROIUtils;
-
+import sc.fiji.maskflow.utils.UnionFind;
+
+/**
+ * Link the detected objects of a stack and write their track in the
+ * {@code object_id} column of the table.
+ * <p>
+ * Object ids are numbered in table order: linked tracks in the order of their
+ * first row, then the objects linked to nothing. Older versions numbered
+ * linked tracks in the iteration order of the TrackMate graph, so the same
+ * tracks may have other ids in tables written by them.
+ */
 @Plugin(type = Command.class, headless = true)
 public class ObjectsTracker implements Command {
 
+	public static final String DISTANCE_COST = "Distance";
+	public static final String BOX_OVERLAP_COST = "Bounding Box Overlap";
+	public static final String MASK_OVERLAP_COST = "Mask Overlap";
+
 	@Parameter
 	private LogService log;
 
@@ -49,6 +55,9 @@ public class ObjectsTracker implements Command {
 	@Parameter
 	private LUTService luts;
 
+	@Parameter
+	private MetricsService metrics;
+
 	@Parameter
 	private GenericTable table;
 
@@ -67,19 +76,41 @@ public class ObjectsTracker implements Command {
 	@Parameter(required = false)
 	private boolean fillROIManager = false;
 
+	@Parameter(required = false, label = "Linking Cost", choices = { DISTANCE_COST,
+		BOX_OVERLAP_COST, MASK_OVERLAP_COST },
+		description = "Link objects of consecutive frames by the distance between their " +
+			"centroids or by the overlap (IoU) of their bounding boxes or masks. " +
+			"Gap closing always uses the distance.")
+	private String linkingCost = DISTANCE_COST;
+
+	@Parameter(required = false, label = "Minimum Overlap",
+		description = "Objects of consecutive frames are only linked when their overlap " +
+			"is above this value (between 0 and 1).")
+	private double minOverlap = 0.0;
+
+	@Parameter(required = false, label = "Number of Threads",
+		description = "Threads used to link the frames. Use 0 to use all the cores. " +
+			"The tracks do not depend on it.")
+	private int numThreads = 1;
+
 	@Parameter(type = ItemIO.OUTPUT)
 	private GenericTable resultTable;
 
+	private DetectionTable detections;
+
 	@Override
 	public void run() {
 
 		assert masks.numDimensions() == 3 : "Mask needs to be of dimension 3.";
 
-		SpotCollection spots = this.buildSpotsFromMasks();
-		// spots = this.getFakeSpots();
+		// Tables written by older versions store Strings.
+		detections = DetectionTable.of(table);
+
+		long start = metrics.start();
+		List<Spot> spots = this.buildSpotsFromMasks();
+		metrics.stop(MetricsService.SPOT_BUILDING, start);
 
 		// Do the tracking.
-		SpotTrackerFactory factory = new SparseLAPTrackerFactory();
 		Map<String, Object> settings = new HashMap<>();
 		settings.putAll(LAPUtils.getDefaultLAPSettingsMap());
 		settings.put("LINKING_MAX_DISTANCE", linkingMaxDistance);
@@ -87,15 +118,25 @@ public class ObjectsTracker implements Command {
 		settings.put("MAX_FRAME_GAP", maxFrameGap);
 		settings.put("ALLOW_GAP_CLOSING", true);
 
-		SpotTracker tracker = factory.create(spots, settings);
+		// Spots are linked in table order so the result does not depend on the
+		// number of threads.
+		DeterministicLAPTracker tracker = new DeterministicLAPTracker(spots, settings);
+		tracker.setNumThreads(numThreads > 0 ? numThreads : Runtime.getRuntime()
+			.availableProcessors());
 
-		// A number of thread of more than 1 leads to inconsistent tracking
-		// results...
-		tracker.setNumThreads(Runtime.getRuntime().availableProcessors());
-		tracker.setNumThreads(1);
+		if (BOX_OVERLAP_COST.equals(linkingCost)) {
+			tracker.setCostMatrixFactory(new OverlapCostMatrixFactory(detections, null, minOverlap,
+				(Double) settings.get(TrackerKeys.KEY_ALTERNATIVE_LINKING_COST_FACTOR)));
+		}
+		else if (MASK_OVERLAP_COST.equals(linkingCost)) {
+			tracker.setCostMatrixFactory(new OverlapCostMatrixFactory(detections, this.masks,
+				minOverlap, (Double) settings.get(TrackerKeys.KEY_ALTERNATIVE_LINKING_COST_FACTOR)));
+		}
 
 		SimpleWeightedGraph<Spot, DefaultWeightedEdge> results = null;
-		if (tracker.checkInput() && tracker.process()) {
+		start = metrics.start();
+		if (tracker.process()) {
+			metrics.stop(MetricsService.LINKING, start);
 			results = tracker.getResult();
 		}
 		else {
@@ -104,71 +145,26 @@ public class ObjectsTracker implements Command {
 		}
 
 		// Process tracking results and edit the new table. Reconstruct all the
-		// possible tracks from the graph object. This method do not take into
-		// account merging and splitting (only gap closing).
-
-		Map<Integer, List<Spot>> trackedSpots = new HashMap<>();
-		int id1;
-		int id2;
-		int nextID;
-
-		for (Spot spot1 : results.vertexSet()) {
-			for (Spot spot2 : results.vertexSet()) {
-				if (results.getEdge(spot1, spot2) != null) {
-
-					id1 = this.contains(spot1, trackedSpots);
-					id2 = this.contains(spot2, trackedSpots);
-
-					if (id1 >= 0 && id2 >= 0) {
-						// Do nothing
-					}
-					else if (id1 >= 0) {
-						trackedSpots.get(id1).add(spot2);
-					}
-					else if (id2 >= 0) {
-						trackedSpots.get(id2).add(spot1);
-					}
-					else {
-						nextID = trackedSpots.size();
-						trackedSpots.put(nextID, new ArrayList<>());
-						trackedSpots.get(nextID).add(spot1);
-						trackedSpots.get(nextID).add(spot2);
-					}
-				}
-			}
-		}
-
-		// Now we had the spots that are linked to nothing.
-		for (Spot spot : spots.iterable(true)) {
-			if (contains(spot, trackedSpots) == -1) {
-				nextID = trackedSpots.size();
-				trackedSpots.put(nextID, new ArrayList<>());
-				trackedSpots.get(nextID).add(spot);
-			}
-		}
-
-		// Now we iterate over each tracker spots and add a column to table to set
-		// its object id.
-
-		table.appendColumn("object_id");
-
-		int objectID;
-		List<Spot> spotList;
-		for (Map.Entry<Integer, List<Spot>> entry : trackedSpots.entrySet()) {
-			objectID = entry.getKey();
-			spotList = entry.getValue();
-			for (Spot spot : spotList) {
-				table.set("object_id", spot.getFeature("ID").intValue(), String.valueOf(objectID));
-			}
+		// possible tracks from the graph object. Tracks are the connected
+		// components of the graph so merging and splitting end up in the same
+		// track.
+		int[] objectIDs = buildTracks(results, spots.size());
+
+		// Now we iterate over each tracker spots and set its object id in the
+		// table.
+		for (int row = 0; row < objectIDs.length; row++) {
+			detections.setObjectId(row, objectIDs[row]);
 		}
 
-		resultTable = table;
+		resultTable = detections;
 
 		if (fillROIManager) {
 			URL lutURL = luts.findLUTs().get("Spectrum.lut");
 			try {
 				ColorTable colorTable = luts.loadLUT(lutURL);
+				start = metrics.start();
 				ROIUtils.fillROIManager(resultTable, colorTable);
+				metrics.stop(MetricsService.ROI_FILLING, start);
 			}
 			catch (IOException exc) {
 				log.error("Can't load the LUT table to fill the ROI Manager.");
@@ -177,70 +173,49 @@ public class ObjectsTracker implements Command {
 
 	}
 
-	private SpotCollection buildSpotsFromMasks() {
-
-		SpotCollection spots = new SpotCollection();
-		Spot spot;
-		int frameID;
-
-		// Convert the mask to integer
-		Img<IntegerType> integerMasks = ops.convert().uint8((IterableInterval) this.masks);
-
-		IntervalView frame;
-		ImgLabeling imgLabeling;
-		LabelRegions<?> labelRegions;
-		LabelRegion labelRegion;
-		LabelRegion biggestRegion;
-		double x;
-		double y;
-		double z;
-		double quality;
-		double radius;
-
+	private List<Spot> buildSpotsFromMasks() {
 		// Build the object list where the location of each object (Spot) are set to
 		// the centroid of the biggest element of the mask.
+		return new SpotExtractor().extract(this.masks, detections);
+	}
 
-		for (int i = 0; i < this.masks.dimension(2); i++) {
-
-			// Get the frame of this mask
-			frameID = Integer.valueOf((String) table.get("frame").get(i));
-
-			// TODO: make sure the frame is from IntegerType or convert it.
-			frame = ops.transform().hyperSliceView(integerMasks, 2, i);
+	/**
+	 * Get the track of every row of the table. Linked tracks are numbered in
+	 * the order of their first row and the spots linked to nothing come after,
+	 * in table order. The numbering only depends on the table and the links, not
+	 * on the order of the graph.
+	 */
+	static int[] buildTracks(SimpleWeightedGraph<Spot, DefaultWeightedEdge> graph, int nRows) {
+
+		// Spots are keyed by their row in the table.
+		UnionFind tracks = new UnionFind(nRows);
+		for (DefaultWeightedEdge edge : graph.edgeSet()) {
+			tracks.union(graph.getEdgeSource(edge).getFeature("ID").intValue(), graph.getEdgeTarget(
+				edge).getFeature("ID").intValue());
+		}
 
-			imgLabeling = ops.labeling().cca(frame, StructuringElement.EIGHT_CONNECTED);
-			labelRegions = new LabelRegions(imgLabeling);
+		int[] objectIDs = new int[nRows];
+		Map<Integer, Integer> rootIDs = new HashMap<>();
+		for (int row = 0; row < nRows; row++) {
+			// Spots without links are handled with the unlinked spots.
+			if (tracks.size(row) < 2) continue;
 
-			biggestRegion = null;
-			for (Object label : labelRegions) {
-				labelRegion = (LabelRegion) label;
-				if (biggestRegion == null || labelRegion.size() > biggestRegion.size()) {
-					biggestRegion = labelRegion;
-				}
+			Integer objectID = rootIDs.get(tracks.find(row));
+			if (objectID == null) {
+				objectID = rootIDs.size();
+				rootIDs.put(tracks.find(row), objectID);
 			}
-
-			x = biggestRegion.getCenterOfMass().getDoublePosition(0);
-			y = biggestRegion.getCenterOfMass().getDoublePosition(1);
-			z = 0;
-			quality = 1;
-			radius = 1;
-
-			spot = new Spot(x, y, z, quality, radius);
-			spot.getFeatures().put("ID", (double) i);
-			spot.getFeatures().put("SIZE", (double) biggestRegion.size());
-			spots.add(spot, frameID);
+			objectIDs[row] = objectID;
 		}
 
-		return spots;
-	}
-
-	private int contains(Spot spot, Map<Integer, List<Spot>> trackedSpots) {
-		for (Map.Entry<Integer, List<Spot>> entry : trackedSpots.entrySet()) {
-			if (entry.getValue().contains(spot)) {
-				return entry.getKey();
+		// Now we add the spots that are linked to nothing.
+		int nextID = rootIDs.size();
+		for (int row = 0; row < nRows; row++) {
+			if (tracks.size(row) < 2) {
+				objectIDs[row] = nextID++;
 			}
 		}
-		return -1;
+		return objectIDs;
 	}
 
 	private SpotCollection getFakeSpots() {
@@ -0,0 +1,204 @@
+
+package sc.fiji.maskflow;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.tracking.sparselap.costfunction.CostFunction;
+import fiji.plugin.trackmate.tracking.sparselap.costmatrix.JaqamanLinkingCostMatrixCreator;
+import fiji.plugin.trackmate.tracking.sparselap.linker.JaqamanLinker;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import sc.fiji.maskflow.internal.SpotExtractor;
+
+/**
+ * Track objects frame by frame, for example during a live acquisition.
+ * <p>
+ * Each new frame is linked to the tracks seen during the last maxFrameGap
+ * frames with the same LAP linker as {@link ObjectsTracker} and the object
+ * ids are returned right away. Ids are provisional: a later offline tracking
+ * of the whole movie can give different tracks. Only the last object of the
+ * tracks still in the window is kept in memory so the time spent on a frame
+ * does not depend on the length of the movie.
+ */
+public class OnlineObjectsTracker {
+
+	private static final double ALTERNATIVE_LINKING_COST_FACTOR = 1.05;
+
+	private final double linkingMaxDistance;
+	private final double gapClosingMaxDistance;
+	private final int maxFrameGap;
+
+	private final List<Track> tracks = new ArrayList<>();
+	private int nextObjectID = 0;
+	private int lastFrame = -1;
+
+	/**
+	 * @param linkingMaxDistance Maximum distance between two objects of
+	 *          consecutive frames.
+	 * @param gapClosingMaxDistance Maximum distance between two objects
+	 *          separated by more than one frame.
+	 * @param maxFrameGap Maximum number of frames between two objects of a
+	 *          track.
+	 */
+	public OnlineObjectsTracker(double linkingMaxDistance, double gapClosingMaxDistance,
+		int maxFrameGap)
+	{
+		this.linkingMaxDistance = linkingMaxDistance;
+		this.gapClosingMaxDistance = gapClosingMaxDistance;
+		this.maxFrameGap = Math.max(maxFrameGap, 1);
+	}
+
+	/**
+	 * Track the objects of a new frame from their centroids.
+	 *
+	 * @param frame The frame, greater than the previous one.
+	 * @return The object id of each object.
+	 */
+	public synchronized int[] addFrame(int frame, double[] x, double[] y) {
+		if (frame <= lastFrame) {
+			throw new IllegalArgumentException("Frame " + frame + " comes after frame " + lastFrame +
+				".");
+		}
+		lastFrame = frame;
+
+		List<Spot> targets = new ArrayList<>(x.length);
+		Map<Spot, Integer> indexes = new IdentityHashMap<>();
+		for (int i = 0; i < x.length; i++) {
+			Spot spot = new Spot(x[i], y[i], 0, 1, 1);
+			spot.getFeatures().put(Spot.FRAME, (double) frame);
+			targets.add(spot);
+			indexes.put(spot, i);
+		}
+
+		// Frames can be skipped so tracks older than maxFrameGap are also dropped
+		// before linking.
+		tracks.removeIf(track -> frame - track.lastFrame > maxFrameGap);
+
+		List<Spot> sources = new ArrayList<>(tracks.size());
+		for (Track track : tracks) {
+			sources.add(track.last);
+		}
+
+		Map<Spot, Spot> assignment = this.link(sources, targets);
+
+		// Linked objects extend their track, the others start a new one.
+		int[] objectIDs = new int[targets.size()];
+		boolean[] linked = new boolean[targets.size()];
+		for (Track track : tracks) {
+			Spot target = assignment.get(track.last);
+			if (target == null) continue;
+			int index = indexes.get(target);
+			objectIDs[index] = track.objectID;
+			linked[index] = true;
+			track.last = target;
+			track.lastFrame = frame;
+		}
+		for (int i = 0; i < targets.size(); i++) {
+			if (!linked[i]) {
+				objectIDs[i] = nextObjectID++;
+				tracks.add(new Track(objectIDs[i], targets.get(i), frame));
+			}
+		}
+
+		// Tracks that can't be linked to the next frames leave the window.
+		Iterator<Track> it = tracks.iterator();
+		while (it.hasNext()) {
+			if (frame - it.next().lastFrame >= maxFrameGap) {
+				it.remove();
+			}
+		}
+
+		return objectIDs;
+	}
+
+	/**
+	 * Track the objects detected in a new frame. The object ids are also set in
+	 * the table.
+	 *
+	 * @param frame The frame, greater than the previous one.
+	 * @param masks The masks of the frame, one plane per row of the table.
+	 * @param table The objects detected in the frame.
+	 * @return The object id of each row of the table.
+	 */
+	public int[] addFrame(int frame, RandomAccessibleInterval<? extends RealType<?>> masks,
+		DetectionTable table)
+	{
+		List<Spot> spots = new SpotExtractor().extract(masks, table);
+		double[] x = new double[spots.size()];
+		double[] y = new double[spots.size()];
+		for (int i = 0; i < spots.size(); i++) {
+			x[i] = spots.get(i).getDoublePosition(0);
+			y[i] = spots.get(i).getDoublePosition(1);
+		}
+
+		int[] objectIDs = this.addFrame(frame, x, y);
+		for (int row = 0; row < objectIDs.length; row++) {
+			table.setObjectId(row, objectIDs[row]);
+		}
+		return objectIDs;
+	}
+
+	/** Number of tracks which can still be linked to the next frame. */
+	public synchronized int getActiveTrackCount() {
+		return tracks.size();
+	}
+
+	/** Number of object ids given so far. */
+	public synchronized int getObjectCount() {
+		return nextObjectID;
+	}
+
+	// -- Helper methods --
+
+	private Map<Spot, Spot> link(List<Spot> sources, List<Spot> targets) {
+		if (sources.isEmpty() || targets.isEmpty()) {
+			return Collections.emptyMap();
+		}
+
+		double maxDistance = Math.max(linkingMaxDistance, gapClosingMaxDistance);
+		JaqamanLinkingCostMatrixCreator<Spot, Spot> creator = new JaqamanLinkingCostMatrixCreator<>(
+			sources, targets, new GapCostFunction(), maxDistance * maxDistance,
+			ALTERNATIVE_LINKING_COST_FACTOR, 1d);
+		JaqamanLinker<Spot, Spot> linker = new JaqamanLinker<>(creator);
+		if (!linker.checkInput() || !linker.process()) {
+			throw new IllegalStateException("Linking failed: " + linker.getErrorMessage());
+		}
+		return linker.getResult();
+	}
+
+	/**
+	 * Square distance between two objects, with a maximum distance depending on
+	 * the number of frames between them.
+	 */
+	private class GapCostFunction implements CostFunction<Spot, Spot> {
+
+		@Override
+		public double linkingCost(Spot source, Spot target) {
+			int gap = target.getFeature(Spot.FRAME).intValue() - source.getFeature(Spot.FRAME)
+				.intValue();
+			double maxDistance = gap == 1 ? linkingMaxDistance : gapClosingMaxDistance;
+			double cost = source.squareDistanceTo(target);
+			return cost <= maxDistance * maxDistance ? cost : Double.POSITIVE_INFINITY;
+		}
+	}
+
+	private static class Track {
+
+		private final int objectID;
+		private Spot last;
+		private int lastFrame;
+
+		private Track(int objectID, Spot last, int lastFrame) {
+			this.objectID = objectID;
+			this.last = last;
+			this.lastFrame = lastFrame;
+		}
+	}
+
+}
@@ -11,6 +11,7 @@ import org.tensorflow.Graph;
 import org.tensorflow.Session;
 
 import net.imagej.tensorflow.TensorFlowService;
+import sc.fiji.maskflow.ModelService;
 
 public abstract class AbstractPredictor {
 
@@ -20,13 +21,24 @@ public abstract class AbstractPredictor {
 	@Parameter
 	protected TensorFlowService tfService;
 
+	@Parameter
+	protected ModelService modelService;
+
 	protected Graph graph;
 	protected Session session;
 
 	protected void loadModel(Location modelLocation, String modelName, String modelFilename) {
+		this.loadModel(modelLocation, modelName, modelFilename, SessionConfig.DEFAULT, 0);
+	}
+
+	protected void loadModel(Location modelLocation, String modelName, String modelFilename,
+		SessionConfig config, int replica)
+	{
 		try {
-			this.graph = tfService.loadGraph(modelLocation, modelName, modelFilename);
-			this.session = new Session(this.graph);
+			// Sessions are shared and kept warm by the model service.
+			this.graph = modelService.getGraph(modelLocation, modelName, modelFilename);
+			this.session = modelService.getSession(modelLocation, modelName, modelFilename, config,
+				replica);
 		}
 		catch (IOException e) {
 			log.error(e);
@@ -45,9 +57,10 @@ public abstract class AbstractPredictor {
 	}
 
 	protected void clear() {
-		// Do some cleaning
-		this.session.close();
-		tfService.dispose();
+		// Only drop the references: sessions are shared by all the runs of the
+		// context and closed by the model service when the context is disposed.
+		this.graph = null;
+		this.session = null;
 	}
 
 	public Graph getGraph() {
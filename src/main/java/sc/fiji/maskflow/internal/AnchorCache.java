@@ -0,0 +1,161 @@
+
+package sc.fiji.maskflow.internal;
+
+import java.nio.FloatBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import org.tensorflow.Tensor;
+
+import sc.fiji.maskflow.utils.TensorUtils;
+
+/**
+ * Cache of the RPN anchor tensors.
+ * <p>
+ * Anchors only depend on the molded image shape and on the BACKBONE_STRIDES,
+ * RPN_ANCHOR_SCALES, RPN_ANCHOR_RATIOS and RPN_ANCHOR_STRIDE parameters so they
+ * are computed once and the same tensor is shared by all the frames (and, once
+ * stacked, by all the batches) of all the runs. Cached tensors are owned by
+ * the cache: callers must not close them.
+ */
+public class AnchorCache implements AutoCloseable {
+
+	private final Map<String, Tensor<?>> anchors = new HashMap<>();
+
+	/**
+	 * Get the anchors of a molded image.
+	 *
+	 * @param config The parameters of the model.
+	 * @param height Height of the molded image.
+	 * @param width Width of the molded image.
+	 * @param batchSize Number of stacked copies of the anchors. 1 gives anchors
+	 *          without a batch dimension, see
+	 *          {@link #getBatch(ModelConfig, long, long, int, Supplier)} for a
+	 *          batch of one.
+	 * @param factory Compute the anchors of a single image on a cache miss.
+	 *          The cache takes ownership of the returned tensor. When null, the
+	 *          anchors are generated in Java.
+	 */
+	public synchronized Tensor<?> get(ModelConfig config, long height, long width,
+		int batchSize, Supplier<Tensor<?>> factory)
+	{
+		final String key = config.getAnchorKey() + "/" + height + "x" + width;
+
+		Tensor<?> single = anchors.get(key + "/1");
+		if (single == null) {
+			single = factory != null ? factory.get() : generate(config, (int) height,
+				(int) width);
+			anchors.put(key + "/1", single);
+		}
+		if (batchSize == 1) {
+			return single;
+		}
+		return getBatch(config, height, width, batchSize, factory);
+	}
+
+	/**
+	 * Get the anchors of a molded image with a leading batch dimension, also
+	 * for a batch of one so they can be fed as they are.
+	 *
+	 * @see #get(ModelConfig, long, long, int, Supplier)
+	 */
+	public synchronized Tensor<?> getBatch(ModelConfig config, long height, long width,
+		int batchSize, Supplier<Tensor<?>> factory)
+	{
+		final String key = config.getAnchorKey() + "/" + height + "x" + width + "/batch" +
+			batchSize;
+
+		Tensor<?> batch = anchors.get(key);
+		if (batch == null) {
+			final Tensor<?> single = get(config, height, width, 1, factory);
+			batch = TensorUtils.stack(Collections.nCopies(batchSize, single));
+			anchors.put(key, batch);
+		}
+		return batch;
+	}
+
+	/** Close the anchors of a model, whatever the image shape. */
+	public synchronized void release(ModelConfig config) {
+		final String prefix = config.getAnchorKey() + "/";
+		final Iterator<Map.Entry<String, Tensor<?>>> it = anchors.entrySet().iterator();
+		while (it.hasNext()) {
+			final Map.Entry<String, Tensor<?>> entry = it.next();
+			if (entry.getKey().startsWith(prefix)) {
+				entry.getValue().close();
+				it.remove();
+			}
+		}
+	}
+
+	/** Number of cached tensors. */
+	public synchronized int size() {
+		return anchors.size();
+	}
+
+	@Override
+	public synchronized void close() {
+		TensorScope.closeAll(anchors.values());
+		anchors.clear();
+	}
+
+	/**
+	 * Generate the normalized anchors of all the feature pyramid levels for a
+	 * molded image. See generate_pyramid_anchors() in the maskflow Python
+	 * package.
+	 */
+	public static Tensor<Float> generate(ModelConfig config, int height, int width) {
+		final float[] boxes = generate(config.getBackboneStrides(), config.getRpnAnchorScales(),
+			config.getRpnAnchorRatios(), config.getRpnAnchorStride(), height, width);
+		return Tensor.create(new long[] { boxes.length / 4, 4 }, FloatBuffer.wrap(boxes));
+	}
+
+	public static float[] generate(int[] strides, int[] scales, float[] ratios, int anchorStride,
+		int height, int width)
+	{
+		int count = 0;
+		for (int level = 0; level < scales.length; level++) {
+			final int featureHeight = (int) Math.ceil((double) height / strides[level]);
+			final int featureWidth = (int) Math.ceil((double) width / strides[level]);
+			count += ceilDiv(featureHeight, anchorStride) * ceilDiv(featureWidth, anchorStride) *
+				ratios.length;
+		}
+		final float[] boxes = new float[count * 4];
+
+		// Normalization from pixel coordinates (see norm_boxes()).
+		final double yNorm = height - 1;
+		final double xNorm = width - 1;
+
+		int n = 0;
+		for (int level = 0; level < scales.length; level++) {
+			final int stride = strides[level];
+			final int featureHeight = (int) Math.ceil((double) height / stride);
+			final int featureWidth = (int) Math.ceil((double) width / stride);
+
+			for (int fy = 0; fy < featureHeight; fy += anchorStride) {
+				final double centerY = fy * stride;
+				for (int fx = 0; fx < featureWidth; fx += anchorStride) {
+					final double centerX = fx * stride;
+					for (float ratio : ratios) {
+						final double boxHeight = scales[level] / Math.sqrt(ratio);
+						final double boxWidth = scales[level] * Math.sqrt(ratio);
+						boxes[n++] = (float) ((centerY - 0.5 * boxHeight) / yNorm);
+						boxes[n++] = (float) ((centerX - 0.5 * boxWidth) / xNorm);
+						boxes[n++] = (float) ((centerY + 0.5 * boxHeight - 1) / yNorm);
+						boxes[n++] = (float) ((centerX + 0.5 * boxWidth - 1) / xNorm);
+					}
+				}
+			}
+		}
+		return boxes;
+	}
+
+	// -- Helper methods --
+
+	private static int ceilDiv(int a, int b) {
+		return (a + b - 1) / b;
+	}
+
+}
@@ -0,0 +1,93 @@
+
+package sc.fiji.maskflow.internal;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The files of a batch already processed, kept in a text file so an
+ * interrupted batch resumes where it stopped.
+ * <p>
+ * A file is recorded once all its outputs are written, as a "size, last
+ * modified time, path" line appended to the manifest. A file is done when it
+ * is recorded with its current size and modification time so modified inputs
+ * are processed again. A line cut by a crash is ignored.
+ */
+public class BatchManifest {
+
+	private static final String SEPARATOR = "\t";
+
+	private final Path file;
+	private final Path baseDirectory;
+
+	// Relative path -> size and modification time.
+	private final Map<String, String> done = new HashMap<>();
+
+	/**
+	 * @param file The manifest, read when it exists.
+	 * @param baseDirectory Paths are recorded relative to this directory.
+	 */
+	public BatchManifest(Path file, Path baseDirectory) throws IOException {
+		this.file = file;
+		this.baseDirectory = baseDirectory.toAbsolutePath();
+
+		if (Files.exists(file)) {
+			String content = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+			String[] lines = content.split("\n", -1);
+
+			// The last line is empty unless it has been cut.
+			for (int i = 0; i < lines.length - 1; i++) {
+				String[] fields = lines[i].split(SEPARATOR, 3);
+				if (fields.length == 3 && !fields[2].isEmpty()) {
+					done.put(fields[2], fields[0] + SEPARATOR + fields[1]);
+				}
+			}
+
+			// Terminate a cut line so the next record starts on its own line.
+			if (!content.isEmpty() && !content.endsWith("\n")) {
+				Files.write(file, "\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+			}
+		}
+	}
+
+	/** Whether a file has been processed and not modified since. */
+	public synchronized boolean isDone(Path input) throws IOException {
+		return stamp(input).equals(done.get(key(input)));
+	}
+
+	/** Record a file as processed. The manifest is written to disk right away. */
+	public synchronized void markDone(Path input) throws IOException {
+		String stamp = stamp(input);
+		String line = stamp + SEPARATOR + key(input) + "\n";
+		Files.write(file, line.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE,
+			StandardOpenOption.APPEND, StandardOpenOption.SYNC);
+		done.put(key(input), stamp);
+	}
+
+	/** Forget all the processed files. */
+	public synchronized void clear() throws IOException {
+		Files.deleteIfExists(file);
+		done.clear();
+	}
+
+	public synchronized int size() {
+		return done.size();
+	}
+
+	// -- Helper methods --
+
+	private String key(Path input) {
+		// The same separator on every platform.
+		return baseDirectory.relativize(input.toAbsolutePath()).toString().replace('\\', '/');
+	}
+
+	private static String stamp(Path input) throws IOException {
+		return Files.size(input) + SEPARATOR + Files.getLastModifiedTime(input).toMillis();
+	}
+
+}
@@ -0,0 +1,169 @@
+
+package sc.fiji.maskflow.internal;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * A binary mask cropped to its bounding box.
+ * <p>
+ * Pixels are stored either as bits (one bit per pixel of the bounding box) or
+ * run-length encoded, so the memory used scales with the size of the object
+ * instead of the size of the frame. Coordinates are given in the frame.
+ */
+public class CompactMask {
+
+	private static final float THRESHOLD = 0.5f;
+
+	private final int x;
+	private final int y;
+	private final int width;
+	private final int height;
+	private final int area;
+
+	// Bits of the pixels in row-major order, null when run-length encoded.
+	private final long[] bits;
+
+	// Ends of the runs in row-major order. Runs alternate between background and
+	// foreground, starting with background.
+	private final int[] runEnds;
+
+	private CompactMask(int x, int y, int width, int height, int area, long[] bits,
+		int[] runEnds)
+	{
+		this.x = x;
+		this.y = y;
+		this.width = width;
+		this.height = height;
+		this.area = area;
+		this.bits = bits;
+		this.runEnds = runEnds;
+	}
+
+	/**
+	 * Threshold a region of a float mask.
+	 *
+	 * @param x Position of the region in the frame.
+	 * @param y Position of the region in the frame.
+	 * @param width Width of the region.
+	 * @param height Height of the region.
+	 * @param values The float mask.
+	 * @param offset Index of the first pixel of the region in values.
+	 * @param stride Number of values between two rows.
+	 * @param runLength Encode the mask with runs instead of bits.
+	 */
+	public static CompactMask create(int x, int y, int width, int height, float[] values,
+		int offset, int stride, boolean runLength)
+	{
+		return create(x, y, width, height, FloatBuffer.wrap(values), offset, stride, runLength);
+	}
+
+	/**
+	 * Threshold a region of a float mask read from a buffer.
+	 *
+	 * @see #create(int, int, int, int, float[], int, int, boolean)
+	 */
+	public static CompactMask create(int x, int y, int width, int height, FloatBuffer values,
+		int offset, int stride, boolean runLength)
+	{
+		int size = width * height;
+		long[] bits = new long[(size + 63) >>> 6];
+		int area = 0;
+		for (int row = 0; row < height; row++) {
+			int start = offset + row * stride;
+			for (int col = 0; col < width; col++) {
+				if (values.get(start + col) >= THRESHOLD) {
+					int i = row * width + col;
+					bits[i >>> 6] |= 1L << i;
+					area++;
+				}
+			}
+		}
+
+		if (!runLength) {
+			return new CompactMask(x, y, width, height, area, bits, null);
+		}
+
+		int[] runEnds = new int[16];
+		int nRuns = 0;
+		boolean foreground = false;
+		for (int i = 0; i < size; i++) {
+			boolean value = ((bits[i >>> 6] >>> i) & 1L) != 0;
+			if (value != foreground) {
+				if (nRuns == runEnds.length) {
+					runEnds = Arrays.copyOf(runEnds, 2 * nRuns);
+				}
+				runEnds[nRuns++] = i;
+				foreground = value;
+			}
+		}
+		if (nRuns == runEnds.length) {
+			runEnds = Arrays.copyOf(runEnds, nRuns + 1);
+		}
+		runEnds[nRuns++] = size;
+		return new CompactMask(x, y, width, height, area, null, Arrays.copyOf(runEnds, nRuns));
+	}
+
+	public int getX() {
+		return x;
+	}
+
+	public int getY() {
+		return y;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/** Number of pixels of the mask. */
+	public int getArea() {
+		return area;
+	}
+
+	public boolean isRunLengthEncoded() {
+		return runEnds != null;
+	}
+
+	/** Check whether a pixel of the frame belongs to the mask. */
+	public boolean contains(int px, int py) {
+		if (px < x || py < y || px >= x + width || py >= y + height) {
+			return false;
+		}
+		int i = (py - y) * width + (px - x);
+		if (bits != null) {
+			return ((bits[i >>> 6] >>> i) & 1L) != 0;
+		}
+
+		// Index of the run containing the pixel. Foreground runs have odd indexes.
+		int run = Arrays.binarySearch(runEnds, i);
+		run = run >= 0 ? run + 1 : -run - 1;
+		return (run & 1) == 1;
+	}
+
+	/** Number of pixels shared by two masks. */
+	public int intersection(CompactMask other) {
+		int x1 = Math.max(x, other.x);
+		int y1 = Math.max(y, other.y);
+		int x2 = Math.min(x + width, other.x + other.width);
+		int y2 = Math.min(y + height, other.y + other.height);
+
+		int intersection = 0;
+		for (int py = y1; py < y2; py++) {
+			for (int px = x1; px < x2; px++) {
+				if (contains(px, py) && other.contains(px, py)) intersection++;
+			}
+		}
+		return intersection;
+	}
+
+	/** Approximate number of bytes used by the pixels. */
+	public long getSizeInBytes() {
+		return bits != null ? 8L * bits.length : 4L * runEnds.length;
+	}
+
+}
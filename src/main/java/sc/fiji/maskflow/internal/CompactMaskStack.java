@@ -0,0 +1,76 @@
+
+package sc.fiji.maskflow.internal;
+
+import java.util.List;
+
+import net.imglib2.AbstractInterval;
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.logic.BitType;
+
+/**
+ * A lazy X, Y, N view over a list of {@link CompactMask}, one mask per plane.
+ * <p>
+ * Pixels are computed on access so the stack does not use more memory than the
+ * masks. The view is read-only.
+ */
+public class CompactMaskStack extends AbstractInterval implements
+	RandomAccessibleInterval<BitType>
+{
+
+	private final List<CompactMask> masks;
+
+	/**
+	 * @param width Width of the frames.
+	 * @param height Height of the frames.
+	 * @param masks The masks, one per plane.
+	 */
+	public CompactMaskStack(long width, long height, List<CompactMask> masks) {
+		super(new long[] { width, height, masks.size() });
+		this.masks = masks;
+	}
+
+	public List<CompactMask> getMasks() {
+		return masks;
+	}
+
+	@Override
+	public RandomAccess<BitType> randomAccess() {
+		return new MaskAccess();
+	}
+
+	@Override
+	public RandomAccess<BitType> randomAccess(Interval interval) {
+		return randomAccess();
+	}
+
+	private class MaskAccess extends Point implements RandomAccess<BitType> {
+
+		private final BitType value = new BitType();
+
+		private MaskAccess() {
+			super(3);
+		}
+
+		@Override
+		public BitType get() {
+			value.set(masks.get((int) position[2]).contains((int) position[0], (int) position[1]));
+			return value;
+		}
+
+		@Override
+		public MaskAccess copy() {
+			MaskAccess copy = new MaskAccess();
+			copy.setPosition(this);
+			return copy;
+		}
+
+		@Override
+		public MaskAccess copyRandomAccess() {
+			return copy();
+		}
+	}
+
+}
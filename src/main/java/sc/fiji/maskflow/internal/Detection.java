@@ -0,0 +1,122 @@
+
+package sc.fiji.maskflow.internal;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.tensorflow.Tensor;
+
+import sc.fiji.maskflow.utils.TensorUtils;
+
+/**
+ * An object detected in a frame.
+ * <p>
+ * The bounding box is given in the coordinates of the original frame and the
+ * mask is stored as a {@link CompactMask} cropped to the bounding box.
+ */
+public class Detection {
+
+	private final int frame;
+	private final int classId;
+	private final float score;
+	private final CompactMask mask;
+
+	public Detection(int frame, int classId, float score, CompactMask mask) {
+		this.frame = frame;
+		this.classId = classId;
+		this.score = score;
+		this.mask = mask;
+	}
+
+	public int getFrame() {
+		return frame;
+	}
+
+	public int getClassId() {
+		return classId;
+	}
+
+	public float getScore() {
+		return score;
+	}
+
+	public int getX() {
+		return mask.getX();
+	}
+
+	public int getY() {
+		return mask.getY();
+	}
+
+	public int getWidth() {
+		return mask.getWidth();
+	}
+
+	public int getHeight() {
+		return mask.getHeight();
+	}
+
+	public CompactMask getMask() {
+		return mask;
+	}
+
+	/** Get the same detection in another frame. */
+	public Detection withFrame(int frame) {
+		return frame == this.frame ? this : new Detection(frame, classId, score, mask);
+	}
+
+	/** Check whether the bounding boxes of two detections overlap. */
+	public boolean overlaps(Detection other) {
+		return getX() < other.getX() + other.getWidth() && other.getX() < getX() + getWidth() &&
+			getY() < other.getY() + other.getHeight() && other.getY() < getY() + getHeight();
+	}
+
+	/**
+	 * Read the outputs of the postprocessing graph for a single image. Masks are
+	 * thresholded and cropped to the bounding boxes so the full image masks can
+	 * be released.
+	 *
+	 * @param frame The frame of the image.
+	 * @param offsetX Position of the image in the frame.
+	 * @param offsetY Position of the image in the frame.
+	 * @param runLength Run-length encode the masks.
+	 */
+	public static List<Detection> fromTensors(int frame, int offsetX, int offsetY,
+		Tensor<?> rois, Tensor<?> scores, Tensor<?> classIds, Tensor<?> masks, boolean runLength)
+	{
+		int n = (int) rois.shape()[0];
+		List<Detection> detections = new ArrayList<>(n);
+		if (n == 0) {
+			return detections;
+		}
+
+		// (y1, x1, y2, x2)
+		int[][] roisArray = rois.copyTo(new int[n][(int) rois.shape()[1]]);
+		float[] scoresArray = scores.copyTo(new float[n]);
+		int[] classIdsArray = classIds.copyTo(new int[n]);
+
+		// Masks are [N, H, W]. They are read into a direct buffer reused by the
+		// thread instead of a new array on the heap for every frame. Tensors
+		// larger than 2 GB are rejected.
+		int maskHeight = (int) masks.shape()[1];
+		int maskWidth = (int) masks.shape()[2];
+		FloatBuffer maskBuffer = TensorUtils.readFloats(masks);
+
+		for (int i = 0; i < n; i++) {
+			int y1 = Math.max(roisArray[i][0], 0);
+			int x1 = Math.max(roisArray[i][1], 0);
+			int y2 = Math.min(roisArray[i][2], maskHeight);
+			int x2 = Math.min(roisArray[i][3], maskWidth);
+			int width = Math.max(x2 - x1, 0);
+			int height = Math.max(y2 - y1, 0);
+
+			int offset = (int) (((long) i * maskHeight + y1) * maskWidth + x1);
+			CompactMask mask = CompactMask.create(x1 + offsetX, y1 + offsetY, width, height,
+				maskBuffer, offset, maskWidth, runLength);
+			detections.add(new Detection(frame, classIdsArray[i], scoresArray[i], mask));
+		}
+		return detections;
+	}
+
+}
@@ -0,0 +1,213 @@
+
+package sc.fiji.maskflow.internal;
+
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_ALLOW_GAP_CLOSING;
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_ALLOW_TRACK_MERGING;
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_ALLOW_TRACK_SPLITTING;
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_ALTERNATIVE_LINKING_COST_FACTOR;
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_CUTOFF_PERCENTILE;
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_GAP_CLOSING_FEATURE_PENALTIES;
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_GAP_CLOSING_MAX_DISTANCE;
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_GAP_CLOSING_MAX_FRAME_GAP;
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_LINKING_FEATURE_PENALTIES;
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_LINKING_MAX_DISTANCE;
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_MERGING_FEATURE_PENALTIES;
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_MERGING_MAX_DISTANCE;
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_SPLITTING_FEATURE_PENALTIES;
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_SPLITTING_MAX_DISTANCE;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+import org.jgrapht.graph.SimpleWeightedGraph;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.tracking.sparselap.SparseLAPSegmentTracker;
+import fiji.plugin.trackmate.tracking.sparselap.costfunction.CostFunction;
+import fiji.plugin.trackmate.tracking.sparselap.costfunction.FeaturePenaltyCostFunction;
+import fiji.plugin.trackmate.tracking.sparselap.costfunction.SquareDistCostFunction;
+import fiji.plugin.trackmate.tracking.sparselap.costmatrix.CostMatrixCreator;
+import fiji.plugin.trackmate.tracking.sparselap.costmatrix.JaqamanLinkingCostMatrixCreator;
+import fiji.plugin.trackmate.tracking.sparselap.linker.JaqamanLinker;
+
+/**
+ * The TrackMate sparse LAP tracker with a result that does not depend on the
+ * number of threads.
+ * <p>
+ * Frame pairs are linked in parallel, each one with its own cost matrix, but
+ * the links are added to the graph in frame order and in the order of the
+ * spots given to the tracker, so the graph is always built the same way. Gap
+ * closing, merging and splitting then run on a single thread with the
+ * TrackMate segment tracker.
+ * <p>
+ * By default, the cost of linking two spots of consecutive frames is their
+ * square distance. Another cost can be used by setting a
+ * {@link CostMatrixFactory}.
+ */
+public class DeterministicLAPTracker {
+
+	/** Create the cost matrix linking the spots of two consecutive frames. */
+	public interface CostMatrixFactory {
+
+		/**
+		 * @return The cost matrix creator or null when no spots can be linked.
+		 */
+		CostMatrixCreator<Spot, Spot> create(List<Spot> sources, List<Spot> targets);
+	}
+
+	private final List<Spot> spots;
+	private final Map<String, Object> settings;
+
+	private CostMatrixFactory costMatrixFactory;
+	private int numThreads = 1;
+	private SimpleWeightedGraph<Spot, DefaultWeightedEdge> graph;
+	private String errorMessage;
+
+	/**
+	 * @param spots The spots to track with their FRAME feature set. The order of
+	 *          the list sets the order of the graph.
+	 * @param settings The TrackMate LAP tracker settings.
+	 */
+	public DeterministicLAPTracker(List<Spot> spots, Map<String, Object> settings) {
+		this.spots = spots;
+		this.settings = settings;
+	}
+
+	public void setNumThreads(int numThreads) {
+		this.numThreads = Math.max(numThreads, 1);
+	}
+
+	public void setCostMatrixFactory(CostMatrixFactory costMatrixFactory) {
+		this.costMatrixFactory = costMatrixFactory;
+	}
+
+	public SimpleWeightedGraph<Spot, DefaultWeightedEdge> getResult() {
+		return graph;
+	}
+
+	public String getErrorMessage() {
+		return errorMessage;
+	}
+
+	public boolean process() {
+
+		// Spots grouped by frame, in the given order.
+		TreeMap<Integer, List<Spot>> frames = new TreeMap<>();
+		for (Spot spot : spots) {
+			frames.computeIfAbsent(spot.getFeature(Spot.FRAME).intValue(), f -> new ArrayList<>()).add(
+				spot);
+		}
+		List<List<Spot>> frameSpots = new ArrayList<>(frames.values());
+
+		// Link every pair of consecutive frames in parallel.
+		List<Future<JaqamanLinker<Spot, Spot>>> pairs = new ArrayList<>();
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try {
+			for (int i = 0; i < frameSpots.size() - 1; i++) {
+				List<Spot> sources = frameSpots.get(i);
+				List<Spot> targets = frameSpots.get(i + 1);
+				pairs.add(executor.submit(() -> this.link(sources, targets)));
+			}
+
+			graph = new SimpleWeightedGraph<>(DefaultWeightedEdge.class);
+			for (Spot spot : spots) {
+				graph.addVertex(spot);
+			}
+
+			for (int i = 0; i < pairs.size(); i++) {
+				JaqamanLinker<Spot, Spot> linker = pairs.get(i).get();
+				if (linker == null) continue;
+				Map<Spot, Spot> assignment = linker.getResult();
+				Map<Spot, Double> costs = linker.getAssignmentCosts();
+				for (Spot source : frameSpots.get(i)) {
+					Spot target = assignment.get(source);
+					if (target == null) continue;
+					DefaultWeightedEdge edge = graph.addEdge(source, target);
+					graph.setEdgeWeight(edge, costs.get(source));
+				}
+			}
+		}
+		catch (InterruptedException | ExecutionException exc) {
+			errorMessage = "Frame to frame linking failed: " + exc.getMessage();
+			return false;
+		}
+		finally {
+			executor.shutdownNow();
+		}
+
+		boolean gapClosing = (Boolean) settings.get(KEY_ALLOW_GAP_CLOSING);
+		boolean splitting = (Boolean) settings.get(KEY_ALLOW_TRACK_SPLITTING);
+		boolean merging = (Boolean) settings.get(KEY_ALLOW_TRACK_MERGING);
+		if (!gapClosing && !splitting && !merging) {
+			return true;
+		}
+
+		SparseLAPSegmentTracker segmentTracker = new SparseLAPSegmentTracker(graph,
+			this.segmentSettings());
+		segmentTracker.setNumThreads(1);
+		if (!segmentTracker.checkInput() || !segmentTracker.process()) {
+			errorMessage = "Gap closing failed: " + segmentTracker.getErrorMessage();
+			return false;
+		}
+		return true;
+	}
+
+	// -- Helper methods --
+
+	private JaqamanLinker<Spot, Spot> link(List<Spot> sources, List<Spot> targets) {
+		CostMatrixCreator<Spot, Spot> creator;
+		if (costMatrixFactory != null) {
+			creator = costMatrixFactory.create(sources, targets);
+			if (creator == null) {
+				return null;
+			}
+		}
+		else {
+			creator = this.createDistanceCostMatrix(sources, targets);
+		}
+
+		JaqamanLinker<Spot, Spot> linker = new JaqamanLinker<>(creator);
+		if (!linker.checkInput() || !linker.process()) {
+			throw new IllegalStateException(linker.getErrorMessage());
+		}
+		return linker;
+	}
+
+	private CostMatrixCreator<Spot, Spot> createDistanceCostMatrix(List<Spot> sources,
+		List<Spot> targets)
+	{
+		double maxDistance = (Double) settings.get(KEY_LINKING_MAX_DISTANCE);
+		double alternativeCostFactor = (Double) settings.get(KEY_ALTERNATIVE_LINKING_COST_FACTOR);
+
+		@SuppressWarnings("unchecked")
+		Map<String, Double> penalties = (Map<String, Double>) settings.get(
+			KEY_LINKING_FEATURE_PENALTIES);
+		CostFunction<Spot, Spot> costFunction = penalties == null || penalties.isEmpty()
+			? new SquareDistCostFunction() : new FeaturePenaltyCostFunction(penalties);
+
+		return new JaqamanLinkingCostMatrixCreator<>(sources, targets, costFunction, maxDistance *
+			maxDistance, alternativeCostFactor, 1d);
+	}
+
+	private Map<String, Object> segmentSettings() {
+		Map<String, Object> segmentSettings = new HashMap<>();
+		for (String key : new String[] { KEY_ALLOW_GAP_CLOSING, KEY_GAP_CLOSING_FEATURE_PENALTIES,
+			KEY_GAP_CLOSING_MAX_DISTANCE, KEY_GAP_CLOSING_MAX_FRAME_GAP, KEY_ALLOW_TRACK_SPLITTING,
+			KEY_SPLITTING_FEATURE_PENALTIES, KEY_SPLITTING_MAX_DISTANCE, KEY_ALLOW_TRACK_MERGING,
+			KEY_MERGING_FEATURE_PENALTIES, KEY_MERGING_MAX_DISTANCE,
+			KEY_ALTERNATIVE_LINKING_COST_FACTOR, KEY_CUTOFF_PERCENTILE })
+		{
+			segmentSettings.put(key, settings.get(key));
+		}
+		return segmentSettings;
+	}
+
+}
@@ -0,0 +1,172 @@
+
+package sc.fiji.maskflow.internal;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.tensorflow.DataType;
+import org.tensorflow.Tensor;
+import org.tensorflow.Tensors;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Pure Java replacement of the preprocessing graph (preprocessing.pb).
+ * <p>
+ * It resizes the image the same way the graph does (square mode:
+ * IMAGE_MIN_DIM/IMAGE_MIN_SCALE/IMAGE_MAX_DIM with a bilinear resize matching
+ * tf.image.resize_bilinear), pads it to IMAGE_MAX_DIM, subtracts MEAN_PIXEL and
+ * builds the image metadata and window. The molded image is written directly
+ * into a direct buffer used to create the tensor fed to maskrcnn.pb.
+ * <p>
+ * Outputs use the same names as the outputs of {@link MaskRCNNPreprocessImage},
+ * except the anchors which are provided by the {@link AnchorCache}. An instance
+ * is immutable and can mold several frames in parallel.
+ */
+public class ImageMolder {
+
+	private final int minDim;
+	private final int maxDim;
+	private final float minScale;
+	private final float[] meanPixel;
+	private final int numClasses;
+	private final DataType windowType;
+
+	/**
+	 * @param config The parameters of the model.
+	 * @param windowType The type of the window expected by the postprocessing
+	 *          graph.
+	 */
+	public ImageMolder(ModelConfig config, DataType windowType) {
+		this.minDim = config.getImageMinDim();
+		this.maxDim = config.getImageMaxDim();
+		this.minScale = config.getImageMinScale();
+		this.meanPixel = config.getMeanPixel();
+		this.numClasses = config.getNumClasses();
+		this.windowType = windowType;
+	}
+
+	/** Mold a 2D image. */
+	public Map<String, Tensor<?>> mold(RandomAccessibleInterval<? extends RealType<?>> image) {
+
+		final int width = (int) image.dimension(0);
+		final int height = (int) image.dimension(1);
+		final int channels = meanPixel.length;
+
+		// Compute the scale the same way the graph does.
+		double scale = Math.max(1, (double) minDim / Math.min(height, width));
+		if (minScale > 0 && scale < minScale) {
+			scale = minScale;
+		}
+		final int imageMax = Math.max(height, width);
+		if (Math.rint(imageMax * scale) > maxDim) {
+			scale = (double) maxDim / imageMax;
+		}
+
+		final int newHeight = (int) Math.rint(height * scale);
+		final int newWidth = (int) Math.rint(width * scale);
+		final int top = (maxDim - newHeight) / 2;
+		final int left = (maxDim - newWidth) / 2;
+
+		// Read the image (row-major).
+		final float[] pixels = new float[width * height];
+		final Cursor<? extends RealType<?>> cursor = Views.flatIterable(image).cursor();
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = cursor.next().getRealFloat();
+		}
+
+		// Bilinear interpolation coefficients (align_corners = false).
+		final int[] x0 = new int[newWidth];
+		final int[] x1 = new int[newWidth];
+		final float[] dx = new float[newWidth];
+		final float xScale = (float) width / newWidth;
+		for (int x = 0; x < newWidth; x++) {
+			final float in = x * xScale;
+			x0[x] = (int) Math.floor(in);
+			x1[x] = Math.min(x0[x] + 1, width - 1);
+			dx[x] = in - x0[x];
+		}
+		final float yScale = (float) height / newHeight;
+
+		// Write the resized, padded and normalized image.
+		final FloatBuffer molded = ByteBuffer.allocateDirect(4 * maxDim * maxDim * channels).order(
+			ByteOrder.nativeOrder()).asFloatBuffer();
+		for (int y = 0; y < maxDim; y++) {
+			final int ry = y - top;
+			final boolean rowInside = ry >= 0 && ry < newHeight;
+			int y0 = 0;
+			int y1 = 0;
+			float dy = 0;
+			if (rowInside) {
+				final float in = ry * yScale;
+				y0 = (int) Math.floor(in);
+				y1 = Math.min(y0 + 1, height - 1);
+				dy = in - y0;
+			}
+			for (int x = 0; x < maxDim; x++) {
+				final int rx = x - left;
+				float value = 0;
+				if (rowInside && rx >= 0 && rx < newWidth) {
+					final float topValue = pixels[y0 * width + x0[rx]] + (pixels[y0 * width + x1[rx]] -
+						pixels[y0 * width + x0[rx]]) * dx[rx];
+					final float bottomValue = pixels[y1 * width + x0[rx]] + (pixels[y1 * width + x1[rx]] -
+						pixels[y1 * width + x0[rx]]) * dx[rx];
+					value = topValue + (bottomValue - topValue) * dy;
+				}
+				for (int c = 0; c < channels; c++) {
+					molded.put(value - meanPixel[c]);
+				}
+			}
+		}
+		molded.rewind();
+
+		final int[] window = { top, left, top + newHeight, left + newWidth };
+
+		// See compose_image_meta() in the maskflow Python package.
+		final float[] metadata = new float[12 + numClasses];
+		metadata[1] = height;
+		metadata[2] = width;
+		metadata[3] = channels;
+		metadata[4] = maxDim;
+		metadata[5] = maxDim;
+		metadata[6] = channels;
+		for (int i = 0; i < 4; i++) {
+			metadata[7 + i] = window[i];
+		}
+		metadata[11] = (float) scale;
+
+		final Map<String, Tensor<?>> outputs = new HashMap<>();
+		outputs.put("moldedImage", Tensor.create(new long[] { maxDim, maxDim, channels }, molded));
+		outputs.put("imageMetadata", Tensors.create(metadata));
+		outputs.put("windows", this.createWindow(window));
+		outputs.put("originalImageShape", Tensors.create(new long[] { height, width, 1 }));
+		outputs.put("imageShape", Tensors.create(new long[] { maxDim, maxDim, channels }));
+		return outputs;
+	}
+
+	private Tensor<?> createWindow(int[] window) {
+		switch (windowType) {
+			case FLOAT:
+				final float[] floatWindow = new float[window.length];
+				for (int i = 0; i < window.length; i++) {
+					floatWindow[i] = window[i];
+				}
+				return Tensors.create(floatWindow);
+			case INT64:
+				final long[] longWindow = new long[window.length];
+				for (int i = 0; i < window.length; i++) {
+					longWindow[i] = window[i];
+				}
+				return Tensors.create(longWindow);
+			default:
+				return Tensors.create(window);
+		}
+	}
+
+}
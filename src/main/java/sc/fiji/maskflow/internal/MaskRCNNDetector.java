@@ -11,6 +11,7 @@ import org.scijava.command.Command;
 import org.scijava.io.location.Location;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
+import org.tensorflow.Session;
 import org.tensorflow.Session.Runner;
 import org.tensorflow.Tensor;
 
@@ -19,7 +20,7 @@ import sc.fiji.maskflow.utils.TensorUtils;
 @Plugin(type = Command.class, headless = true)
 public class MaskRCNNDetector extends AbstractPredictor implements Command {
 
-	private static final String MODEL_FILENAME = "maskrcnn.pb";
+	public static final String MODEL_FILENAME = "maskrcnn.pb";
 
 	// Specific parameters.
 	private static final Map<String, Object> DEFAULT_INPUT_NODES = new HashMap<String, Object>() {
@@ -50,7 +51,24 @@ public class MaskRCNNDetector extends AbstractPredictor implements Command {
 	@Parameter
 	private Tensor<?> anchors;
 
+	// When true, inputs already have a leading batch dimension (see
+	// TensorUtils.stack()) and outputs keep it.
 	@Parameter(required = false)
+	private boolean batched = false;
+
+	// Index of the session to use when several sessions run in parallel.
+	@Parameter(required = false)
+	private int sessionIndex = 0;
+
+	@Parameter(required = false)
+	private int intraOpThreads = 0;
+
+	@Parameter(required = false)
+	private int interOpThreads = 0;
+
+	@Parameter(required = false,
+		description = "Drop the references to the model. Its sessions are shared and " +
+			"closed with the context.")
 	private boolean clearModel = false;
 
 	@Parameter(type = ItemIO.OUTPUT)
@@ -71,39 +89,16 @@ public class MaskRCNNDetector extends AbstractPredictor implements Command {
 	@Override
 	public void run() {
 
-		this.loadModel(modelLocation, modelName, MODEL_FILENAME);
-
-		// Get input nodes as tensor.
-		Map<String, Object> inputNodes = new HashMap<>(DEFAULT_INPUT_NODES);
-
-		moldedImage = TensorUtils.expandDimension(moldedImage, 0);
-		inputNodes.put("input_image", moldedImage);
-
-		imageMetadata = TensorUtils.expandDimension(imageMetadata, 0);
-		inputNodes.put("input_image_meta", imageMetadata);
+		this.loadModel(modelLocation, modelName, MODEL_FILENAME, new SessionConfig(intraOpThreads,
+			interOpThreads), sessionIndex);
 
-		anchors = TensorUtils.expandDimension(anchors, 0);
-		inputNodes.put("input_anchors", anchors);
-
-		// Setup the runner with input and output nodes.
-		Runner runner = this.session.runner();
-		for (Map.Entry<String, Object> entry : inputNodes.entrySet()) {
-			runner = runner.feed(entry.getKey(), (Tensor<?>) entry.getValue());
-		}
-
-		for (String outputName : OUTPUT_NODE_NAMES) {
-			runner = runner.fetch(outputName);
-		}
-
-		// Run the model
-		final List<Tensor<?>> outputsList = runner.run();
-
-		// Save results in a dict
-		detections = outputsList.get(0);
-		mrcnn_class = outputsList.get(1);
-		mrcnn_bbox = outputsList.get(2);
-		mrcnn_mask = outputsList.get(3);
-		rois = outputsList.get(4);
+		Map<String, Tensor<?>> outputs = detect(this.session, moldedImage, imageMetadata, anchors,
+			batched);
+		detections = outputs.get("detections");
+		mrcnn_class = outputs.get("mrcnn_class");
+		mrcnn_bbox = outputs.get("mrcnn_bbox");
+		mrcnn_mask = outputs.get("mrcnn_mask");
+		rois = outputs.get("rois");
 
 		log.debug("detections : " + detections);
 		log.debug("mrcnn_class : " + mrcnn_class);
@@ -115,4 +110,62 @@ public class MaskRCNNDetector extends AbstractPredictor implements Command {
 			this.clear();
 		}
 	}
+
+	/**
+	 * Run the detection graph.
+	 *
+	 * @param batched When true, inputs already have a leading batch dimension
+	 *          and outputs keep it. Otherwise anchors can still be given with a
+	 *          batch dimension of one, like the ones shared by the
+	 *          {@link AnchorCache}, to avoid copying them for every frame.
+	 * @return The detections, mrcnn_class, mrcnn_bbox, mrcnn_mask and rois
+	 *         outputs, owned by the caller. Inputs are left open.
+	 */
+	public static Map<String, Tensor<?>> detect(Session session, Tensor<?> moldedImage,
+		Tensor<?> imageMetadata, Tensor<?> anchors, boolean batched)
+	{
+		// Tensors created here are closed when the run is done. Inputs are owned
+		// by the caller and outputs are handed over to it.
+		try (TensorScope scope = new TensorScope()) {
+
+			// Get input nodes as tensor.
+			Map<String, Object> inputNodes = new HashMap<>(DEFAULT_INPUT_NODES);
+
+			if (batched) {
+				inputNodes.put("input_image", moldedImage);
+				inputNodes.put("input_image_meta", imageMetadata);
+				inputNodes.put("input_anchors", anchors);
+			}
+			else {
+				inputNodes.put("input_image", scope.track(TensorUtils.expandDimension(moldedImage, 0)));
+				inputNodes.put("input_image_meta", scope.track(TensorUtils.expandDimension(imageMetadata,
+					0)));
+				inputNodes.put("input_anchors", anchors.numDimensions() == 3 ? anchors : scope.track(
+					TensorUtils.expandDimension(anchors, 0)));
+			}
+
+			// Setup the runner with input and output nodes.
+			Runner runner = session.runner();
+			for (Map.Entry<String, Object> entry : inputNodes.entrySet()) {
+				runner = runner.feed(entry.getKey(), (Tensor<?>) entry.getValue());
+			}
+
+			for (String outputName : OUTPUT_NODE_NAMES) {
+				runner = runner.fetch(outputName);
+			}
+
+			// Run the model
+			final List<Tensor<?>> outputsList = runner.run();
+
+			// Save results in a dict
+			Map<String, Tensor<?>> outputs = new HashMap<>();
+			outputs.put("detections", outputsList.get(0));
+			outputs.put("mrcnn_class", outputsList.get(1));
+			outputs.put("mrcnn_bbox", outputsList.get(2));
+			outputs.put("mrcnn_mask", outputsList.get(3));
+			outputs.put("rois", outputsList.get(4));
+			return outputs;
+		}
+	}
+
 }
@@ -11,13 +11,14 @@ import org.scijava.command.Command;
 import org.scijava.io.location.Location;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
+import org.tensorflow.Session;
 import org.tensorflow.Session.Runner;
 import org.tensorflow.Tensor;
 
 @Plugin(type = Command.class, headless = true)
 public class MaskRCNNPostprocessImage extends AbstractPredictor implements Command {
 
-	private static final String MODEL_FILENAME = "postprocessing.pb";
+	public static final String MODEL_FILENAME = "postprocessing.pb";
 
 	// Specific parameters.
 	private static final Map<String, Object> DEFAULT_INPUT_NODES = new HashMap<String, Object>() {
@@ -56,7 +57,9 @@ public class MaskRCNNPostprocessImage extends AbstractPredictor implements Comma
 	@Parameter
 	private Tensor<?> window;
 
-	@Parameter(required = false)
+	@Parameter(required = false,
+		description = "Drop the references to the model. Its sessions are shared and " +
+			"closed with the context.")
 	private boolean clearModel = false;
 
 	@Parameter(type = ItemIO.OUTPUT)
@@ -76,6 +79,32 @@ public class MaskRCNNPostprocessImage extends AbstractPredictor implements Comma
 
 		this.loadModel(modelLocation, modelName, MODEL_FILENAME);
 
+		Map<String, Tensor<?>> outputs = postprocess(this.session, detections, mrcnnMask,
+			originalImageShape, imageShape, window);
+		rois = outputs.get("rois");
+		class_ids = outputs.get("class_ids");
+		scores = outputs.get("scores");
+		masks = outputs.get("masks");
+
+		log.debug("rois : " + rois);
+		log.debug("class_ids : " + class_ids);
+		log.debug("scores : " + scores);
+		log.debug("masks : " + masks);
+
+		if (clearModel) {
+			this.clear();
+		}
+	}
+
+	/**
+	 * Run the postprocessing graph.
+	 *
+	 * @return The rois, class_ids, scores and masks outputs, owned by the
+	 *         caller. Inputs are left open.
+	 */
+	public static Map<String, Tensor<?>> postprocess(Session session, Tensor<?> detections,
+		Tensor<?> mrcnnMask, Tensor<?> originalImageShape, Tensor<?> imageShape, Tensor<?> window)
+	{
 		// Get input nodes as tensor.
 		Map<String, Object> inputNodes = new HashMap<>(DEFAULT_INPUT_NODES);
 
@@ -86,7 +115,7 @@ public class MaskRCNNPostprocessImage extends AbstractPredictor implements Comma
 		inputNodes.put("window", window);
 
 		// Setup the runner with input and output nodes.
-		Runner runner = this.session.runner();
+		Runner runner = session.runner();
 		for (Map.Entry<String, Object> entry : inputNodes.entrySet()) {
 			runner = runner.feed(entry.getKey(), (Tensor<?>) entry.getValue());
 		}
@@ -99,19 +128,11 @@ public class MaskRCNNPostprocessImage extends AbstractPredictor implements Comma
 		final List<Tensor<?>> outputsList = runner.run();
 
 		// Save results in a dict
-		rois = outputsList.get(0);
-		class_ids = outputsList.get(1);
-		scores = outputsList.get(2);
-		masks = outputsList.get(3);
-
-		log.debug("rois : " + rois);
-		log.debug("class_ids : " + class_ids);
-		log.debug("scores : " + scores);
-		log.debug("masks : " + masks);
-
-		if (clearModel) {
-			this.clear();
+		Map<String, Tensor<?>> outputs = new HashMap<>();
+		for (int i = 0; i < OUTPUT_NODE_NAMES.size(); i++) {
+			outputs.put(OUTPUT_NODE_NAMES.get(i), outputsList.get(i));
 		}
+		return outputs;
 	}
 
 }
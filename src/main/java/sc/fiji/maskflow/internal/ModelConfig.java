@@ -0,0 +1,226 @@
+
+package sc.fiji.maskflow.internal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.tensorflow.Tensor;
+import org.tensorflow.Tensors;
+import org.yaml.snakeyaml.Yaml;
+
+/**
+ * The parameters of a model (config.yml), validated once when the model is
+ * loaded.
+ * <p>
+ * The constant inputs of the preprocessing graph are created on first use and
+ * shared by all the frames. They are owned by the config: callers must not
+ * close them.
+ */
+public class ModelConfig implements AutoCloseable {
+
+	private final List<String> classNames;
+	private final int imageMinDim;
+	private final int imageMaxDim;
+	private final float imageMinScale;
+	private final float[] meanPixel;
+	private final int[] backboneStrides;
+	private final int[] rpnAnchorScales;
+	private final float[] rpnAnchorRatios;
+	private final int rpnAnchorStride;
+	private final int batchSize;
+
+	private Map<String, Tensor<?>> constantInputs;
+
+	/** Read and validate a config.yml file. */
+	public static ModelConfig load(File file) throws IOException {
+		try (InputStream input = new FileInputStream(file)) {
+			Object data = new Yaml().load(input);
+			if (!(data instanceof Map)) {
+				throw new IOException("Invalid model parameters in " + file + ".");
+			}
+			return new ModelConfig((Map<String, Object>) data);
+		}
+		catch (IllegalArgumentException exc) {
+			throw new IOException("Invalid model parameters in " + file + ": " + exc.getMessage(),
+				exc);
+		}
+	}
+
+	/**
+	 * @param parameters The parameters of the model as read from config.yml.
+	 * @throws IllegalArgumentException When a parameter is missing or invalid.
+	 */
+	public ModelConfig(Map<String, Object> parameters) {
+		List<String> names = new ArrayList<>();
+		for (Object name : toList(parameters, "CLASS_NAMES")) {
+			names.add(String.valueOf(name));
+		}
+		this.classNames = Collections.unmodifiableList(names);
+		this.imageMinDim = toInt(parameters, "IMAGE_MIN_DIM");
+		this.imageMaxDim = toInt(parameters, "IMAGE_MAX_DIM");
+		this.imageMinScale = toNumber(parameters, "IMAGE_MIN_SCALE").floatValue();
+		this.meanPixel = toFloatArray(parameters, "MEAN_PIXEL");
+		this.backboneStrides = toIntArray(parameters, "BACKBONE_STRIDES");
+		this.rpnAnchorScales = toIntArray(parameters, "RPN_ANCHOR_SCALES");
+		this.rpnAnchorRatios = toFloatArray(parameters, "RPN_ANCHOR_RATIOS");
+		this.rpnAnchorStride = toInt(parameters, "RPN_ANCHOR_STRIDE");
+		this.batchSize = parameters.get("BATCH_SIZE") instanceof Number ? toInt(parameters,
+			"BATCH_SIZE") : 1;
+
+		if (imageMaxDim <= 0 || imageMinDim > imageMaxDim) {
+			throw new IllegalArgumentException("IMAGE_MIN_DIM and IMAGE_MAX_DIM are invalid.");
+		}
+		if (backboneStrides.length < rpnAnchorScales.length) {
+			throw new IllegalArgumentException(
+				"BACKBONE_STRIDES needs a stride for each RPN_ANCHOR_SCALES.");
+		}
+		if (rpnAnchorStride <= 0) {
+			throw new IllegalArgumentException("RPN_ANCHOR_STRIDE must be positive.");
+		}
+	}
+
+	public List<String> getClassNames() {
+		return classNames;
+	}
+
+	/** Number of classes, background included. */
+	public int getNumClasses() {
+		return classNames.size() + 1;
+	}
+
+	public int getImageMinDim() {
+		return imageMinDim;
+	}
+
+	public int getImageMaxDim() {
+		return imageMaxDim;
+	}
+
+	public float getImageMinScale() {
+		return imageMinScale;
+	}
+
+	public float[] getMeanPixel() {
+		return meanPixel.clone();
+	}
+
+	public int[] getBackboneStrides() {
+		return backboneStrides.clone();
+	}
+
+	public int[] getRpnAnchorScales() {
+		return rpnAnchorScales.clone();
+	}
+
+	public float[] getRpnAnchorRatios() {
+		return rpnAnchorRatios.clone();
+	}
+
+	public int getRpnAnchorStride() {
+		return rpnAnchorStride;
+	}
+
+	/** The batch size the model has been exported with. */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/** Identify the parameters the anchors depend on. */
+	public String getAnchorKey() {
+		return Arrays.toString(backboneStrides) + ";" + Arrays.toString(rpnAnchorScales) + ";" +
+			Arrays.toString(rpnAnchorRatios) + ";" + rpnAnchorStride;
+	}
+
+	/** Get the inputs of the preprocessing graph which don't depend on the image. */
+	public synchronized Map<String, Tensor<?>> getConstantInputs() {
+		if (constantInputs == null) {
+			Map<String, Tensor<?>> inputs = new LinkedHashMap<>();
+			inputs.put("class_ids", Tensors.create(new int[getNumClasses()]));
+			inputs.put("image_min_dimension", Tensors.create(imageMinDim));
+			inputs.put("image_max_dimension", Tensors.create(imageMaxDim));
+			inputs.put("minimum_scale", Tensors.create(imageMinScale));
+			inputs.put("mean_pixels", Tensors.create(meanPixel));
+			inputs.put("backbone_strides", Tensors.create(backboneStrides));
+			inputs.put("rpn_anchor_scales", Tensors.create(rpnAnchorScales));
+			inputs.put("rpn_anchor_ratios", Tensors.create(rpnAnchorRatios));
+			inputs.put("rpn_anchor_stride", Tensors.create(rpnAnchorStride));
+			constantInputs = Collections.unmodifiableMap(inputs);
+		}
+		return constantInputs;
+	}
+
+	@Override
+	public synchronized void close() {
+		if (constantInputs != null) {
+			TensorScope.closeAll(constantInputs.values());
+			constantInputs = null;
+		}
+	}
+
+	// -- Helper methods --
+
+	private static Object get(Map<String, Object> parameters, String name) {
+		Object value = parameters.get(name);
+		if (value == null) {
+			throw new IllegalArgumentException(name + " is missing.");
+		}
+		return value;
+	}
+
+	private static Number toNumber(Map<String, Object> parameters, String name) {
+		Object value = get(parameters, name);
+		if (!(value instanceof Number)) {
+			throw new IllegalArgumentException(name + " must be a number.");
+		}
+		return (Number) value;
+	}
+
+	private static int toInt(Map<String, Object> parameters, String name) {
+		Number value = toNumber(parameters, name);
+		if (value.doubleValue() != value.intValue()) {
+			throw new IllegalArgumentException(name + " must be an integer.");
+		}
+		return value.intValue();
+	}
+
+	private static List<?> toList(Map<String, Object> parameters, String name) {
+		Object value = get(parameters, name);
+		if (!(value instanceof List)) {
+			throw new IllegalArgumentException(name + " must be a list.");
+		}
+		return (List<?>) value;
+	}
+
+	private static float[] toFloatArray(Map<String, Object> parameters, String name) {
+		List<?> list = toList(parameters, name);
+		float[] array = new float[list.size()];
+		for (int i = 0; i < array.length; i++) {
+			if (!(list.get(i) instanceof Number)) {
+				throw new IllegalArgumentException(name + " must be a list of numbers.");
+			}
+			array[i] = ((Number) list.get(i)).floatValue();
+		}
+		return array;
+	}
+
+	private static int[] toIntArray(Map<String, Object> parameters, String name) {
+		float[] values = toFloatArray(parameters, name);
+		int[] array = new int[values.length];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = (int) values[i];
+			if (array[i] != values[i]) {
+				throw new IllegalArgumentException(name + " must be a list of integers.");
+			}
+		}
+		return array;
+	}
+
+}
@@ -0,0 +1,116 @@
+
+package sc.fiji.maskflow.internal;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Write the masks of a stack frame by frame as a label image stored in an N5
+ * container.
+ * <p>
+ * The dataset is a X, Y, T uint32 image where every pixel of an object is set
+ * to its label, 0 being the background. Each frame is a gzip compressed block
+ * written as soon as the frame is done, so only a single frame is kept in
+ * memory. Frames without objects are not written: N5 readers fill missing
+ * blocks with 0. Where objects overlap, the last one wins.
+ */
+public class N5LabelWriter {
+
+	private static final String N5_VERSION = "2.0.0";
+	private static final String ATTRIBUTES_FILE = "attributes.json";
+
+	private final Path datasetDirectory;
+	private final int width;
+	private final int height;
+	private final int[] labels;
+	private final ByteBuffer buffer;
+
+	/**
+	 * @param root The N5 container, created if needed.
+	 * @param dataset The name of the dataset.
+	 * @param width Width of the frames.
+	 * @param height Height of the frames.
+	 * @param frames Number of frames.
+	 */
+	public N5LabelWriter(Path root, String dataset, int width, int height, long frames)
+		throws IOException
+	{
+		this.datasetDirectory = root.resolve(dataset);
+		this.width = width;
+		this.height = height;
+		this.labels = new int[width * height];
+		this.buffer = ByteBuffer.allocate(4 * labels.length).order(ByteOrder.BIG_ENDIAN);
+
+		Files.createDirectories(datasetDirectory);
+		write(root.resolve(ATTRIBUTES_FILE), "{\"n5\":\"" + N5_VERSION + "\"}");
+		write(datasetDirectory.resolve(ATTRIBUTES_FILE), "{\"dimensions\":[" + width + "," +
+			height + "," + frames + "],\"blockSize\":[" + width + "," + height + ",1]," +
+			"\"dataType\":\"uint32\",\"compression\":{\"type\":\"gzip\",\"level\":-1," +
+			"\"useZlib\":false}}");
+	}
+
+	/**
+	 * Write the masks of a frame.
+	 *
+	 * @param frame The frame.
+	 * @param masks The masks of the objects of the frame.
+	 * @param objectLabels The label of each mask, greater than 0.
+	 */
+	public void writeFrame(long frame, List<CompactMask> masks, int[] objectLabels)
+		throws IOException
+	{
+		if (masks.isEmpty()) return;
+
+		Arrays.fill(labels, 0);
+		for (int i = 0; i < masks.size(); i++) {
+			CompactMask mask = masks.get(i);
+			int x0 = Math.max(mask.getX(), 0);
+			int y0 = Math.max(mask.getY(), 0);
+			int x1 = Math.min(mask.getX() + mask.getWidth(), width);
+			int y1 = Math.min(mask.getY() + mask.getHeight(), height);
+			for (int y = y0; y < y1; y++) {
+				for (int x = x0; x < x1; x++) {
+					if (mask.contains(x, y)) {
+						labels[y * width + x] = objectLabels[i];
+					}
+				}
+			}
+		}
+
+		// Blocks are stored in <dataset>/<x>/<y>/<t>.
+		Path block = datasetDirectory.resolve("0").resolve("0").resolve(Long.toString(frame));
+		Files.createDirectories(block.getParent());
+		try (OutputStream file = Files.newOutputStream(block);
+				DataOutputStream output = new DataOutputStream(file))
+		{
+			// Header: default mode, number of dimensions and block size.
+			output.writeShort(0);
+			output.writeShort(3);
+			output.writeInt(width);
+			output.writeInt(height);
+			output.writeInt(1);
+			output.flush();
+
+			// Big-endian values, compressed.
+			buffer.clear();
+			buffer.asIntBuffer().put(labels);
+			GZIPOutputStream gzip = new GZIPOutputStream(file, 1 << 16);
+			gzip.write(buffer.array(), 0, buffer.capacity());
+			gzip.finish();
+		}
+	}
+
+	private static void write(Path file, String content) throws IOException {
+		Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+	}
+
+}
@@ -0,0 +1,234 @@
+
+package sc.fiji.maskflow.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.tracking.sparselap.costmatrix.CostMatrixCreator;
+import fiji.plugin.trackmate.tracking.sparselap.costmatrix.DefaultCostMatrixCreator;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import sc.fiji.maskflow.DetectionTable;
+
+/**
+ * Link objects of consecutive frames with a cost of 1 - IoU, the intersection
+ * over union of their bounding boxes or of their masks.
+ * <p>
+ * Candidate pairs are found by bucketing the bounding boxes of the targets on
+ * a grid, so only pairs of objects whose boxes overlap are evaluated and only
+ * the ones with an overlap above the minimum reach the cost matrix.
+ * <p>
+ * Spots are matched to the rows of the table with their ID feature, as set by
+ * {@link SpotExtractor}.
+ */
+public class OverlapCostMatrixFactory implements DeterministicLAPTracker.CostMatrixFactory {
+
+	private static final double THRESHOLD = 0.5;
+
+	private final DetectionTable table;
+	private final RandomAccessibleInterval<? extends RealType<?>> masks;
+	private final double minOverlap;
+	private final double alternativeCostFactor;
+
+	// Mask area of each row, computed on first use.
+	private final int[] areas;
+
+	/**
+	 * @param table The detected objects.
+	 * @param masks The X, Y, N stack of masks, one plane per row of the table,
+	 *          or null to use the bounding boxes.
+	 * @param minOverlap Pairs with an IoU lower or equal are not linked.
+	 * @param alternativeCostFactor The TrackMate alternative cost factor.
+	 */
+	public OverlapCostMatrixFactory(DetectionTable table,
+		RandomAccessibleInterval<? extends RealType<?>> masks, double minOverlap,
+		double alternativeCostFactor)
+	{
+		this.table = table;
+		this.masks = masks;
+		this.minOverlap = Math.max(minOverlap, 0);
+		this.alternativeCostFactor = alternativeCostFactor;
+		this.areas = new int[table.getRowCount()];
+		Arrays.fill(areas, -1);
+	}
+
+	@Override
+	public CostMatrixCreator<Spot, Spot> create(List<Spot> sources, List<Spot> targets) {
+
+		int cellSize = this.cellSize(targets);
+
+		// Targets bucketed in every grid cell their box covers.
+		Map<Long, List<Integer>> grid = new HashMap<>();
+		for (int j = 0; j < targets.size(); j++) {
+			int row = row(targets.get(j));
+			int cx1 = Math.floorDiv(table.getX(row) + table.getWidth(row) - 1, cellSize);
+			int cy1 = Math.floorDiv(table.getY(row) + table.getHeight(row) - 1, cellSize);
+			for (int cy = Math.floorDiv(table.getY(row), cellSize); cy <= cy1; cy++) {
+				for (int cx = Math.floorDiv(table.getX(row), cellSize); cx <= cx1; cx++) {
+					grid.computeIfAbsent(key(cx, cy), k -> new ArrayList<>()).add(j);
+				}
+			}
+		}
+
+		List<Spot> rows = new ArrayList<>();
+		List<Spot> cols = new ArrayList<>();
+		List<Double> costs = new ArrayList<>();
+
+		// Last source evaluated for each target, to skip targets seen in several
+		// cells.
+		int[] seen = new int[targets.size()];
+		Arrays.fill(seen, -1);
+
+		for (int i = 0; i < sources.size(); i++) {
+			int source = row(sources.get(i));
+			List<Integer> candidates = new ArrayList<>();
+			int cx1 = Math.floorDiv(table.getX(source) + table.getWidth(source) - 1, cellSize);
+			int cy1 = Math.floorDiv(table.getY(source) + table.getHeight(source) - 1, cellSize);
+			for (int cy = Math.floorDiv(table.getY(source), cellSize); cy <= cy1; cy++) {
+				for (int cx = Math.floorDiv(table.getX(source), cellSize); cx <= cx1; cx++) {
+					List<Integer> cell = grid.get(key(cx, cy));
+					if (cell == null) continue;
+					for (int j : cell) {
+						if (seen[j] != i) {
+							seen[j] = i;
+							candidates.add(j);
+						}
+					}
+				}
+			}
+
+			// Keep the order of the targets so the matrix does not depend on the
+			// grid.
+			candidates.sort(null);
+			for (int j : candidates) {
+				double overlap = this.overlap(source, row(targets.get(j)));
+				if (overlap > minOverlap) {
+					rows.add(sources.get(i));
+					cols.add(targets.get(j));
+					costs.add(1 - overlap);
+				}
+			}
+		}
+
+		if (costs.isEmpty()) {
+			return null;
+		}
+		return new DefaultCostMatrixCreator<>(rows, cols, costs.stream().mapToDouble(
+			Double::doubleValue).toArray(), alternativeCostFactor, 1d);
+	}
+
+	/** Intersection over union of two rows of the table. */
+	public double overlap(int row1, int row2) {
+		int x0 = Math.max(table.getX(row1), table.getX(row2));
+		int y0 = Math.max(table.getY(row1), table.getY(row2));
+		int x1 = Math.min(table.getX(row1) + table.getWidth(row1), table.getX(row2) + table.getWidth(
+			row2));
+		int y1 = Math.min(table.getY(row1) + table.getHeight(row1), table.getY(row2) + table
+			.getHeight(row2));
+		if (x1 <= x0 || y1 <= y0) {
+			return 0;
+		}
+
+		long intersection;
+		long area1;
+		long area2;
+		if (masks == null) {
+			intersection = (long) (x1 - x0) * (y1 - y0);
+			area1 = (long) table.getWidth(row1) * table.getHeight(row1);
+			area2 = (long) table.getWidth(row2) * table.getHeight(row2);
+		}
+		else {
+			intersection = this.maskIntersection(row1, row2, x0, y0, x1, y1);
+			area1 = this.maskArea(row1);
+			area2 = this.maskArea(row2);
+		}
+
+		long union = area1 + area2 - intersection;
+		return union > 0 ? (double) intersection / union : 0;
+	}
+
+	// -- Helper methods --
+
+	private long maskIntersection(int row1, int row2, int x0, int y0, int x1, int y1) {
+		x0 = (int) Math.max(x0, masks.min(0));
+		y0 = (int) Math.max(y0, masks.min(1));
+		x1 = (int) Math.min(x1, masks.max(0) + 1);
+		y1 = (int) Math.min(y1, masks.max(1) + 1);
+
+		RandomAccess<? extends RealType<?>> ra1 = masks.randomAccess();
+		RandomAccess<? extends RealType<?>> ra2 = masks.randomAccess();
+		ra1.setPosition(row1, 2);
+		ra2.setPosition(row2, 2);
+		long intersection = 0;
+		for (int y = y0; y < y1; y++) {
+			ra1.setPosition(y, 1);
+			ra2.setPosition(y, 1);
+			for (int x = x0; x < x1; x++) {
+				ra1.setPosition(x, 0);
+				ra2.setPosition(x, 0);
+				if (ra1.get().getRealDouble() >= THRESHOLD && ra2.get()
+					.getRealDouble() >= THRESHOLD)
+				{
+					intersection++;
+				}
+			}
+		}
+		return intersection;
+	}
+
+	private int maskArea(int row) {
+		// Frame pairs are linked in parallel but a row always gets the same area.
+		int area = areas[row];
+		if (area >= 0) {
+			return area;
+		}
+
+		int x0 = (int) Math.max(table.getX(row), masks.min(0));
+		int y0 = (int) Math.max(table.getY(row), masks.min(1));
+		int x1 = (int) Math.min(table.getX(row) + table.getWidth(row), masks.max(0) + 1);
+		int y1 = (int) Math.min(table.getY(row) + table.getHeight(row), masks.max(1) + 1);
+
+		RandomAccess<? extends RealType<?>> ra = masks.randomAccess();
+		ra.setPosition(row, 2);
+		area = 0;
+		for (int y = y0; y < y1; y++) {
+			ra.setPosition(y, 1);
+			for (int x = x0; x < x1; x++) {
+				ra.setPosition(x, 0);
+				if (ra.get().getRealDouble() >= THRESHOLD) {
+					area++;
+				}
+			}
+		}
+		areas[row] = area;
+		return area;
+	}
+
+	/** Twice the median box size, so most boxes cover a few cells only. */
+	private int cellSize(List<Spot> targets) {
+		if (targets.isEmpty()) {
+			return 1;
+		}
+		int[] sizes = new int[targets.size()];
+		for (int j = 0; j < sizes.length; j++) {
+			int row = row(targets.get(j));
+			sizes[j] = Math.max(table.getWidth(row), table.getHeight(row));
+		}
+		Arrays.sort(sizes);
+		return Math.max(2 * sizes[sizes.length / 2], 1);
+	}
+
+	private static int row(Spot spot) {
+		return spot.getFeature("ID").intValue();
+	}
+
+	private static long key(int cx, int cy) {
+		return ((long) cx << 32) ^ (cy & 0xffffffffL);
+	}
+
+}
@@ -0,0 +1,238 @@
+
+package sc.fiji.maskflow.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/**
+ * Run frames through the preprocessing, detection and postprocessing stages
+ * one stage at a time.
+ * <p>
+ * Frames are run in groups: all the frames of a group are preprocessed, then
+ * detected in batches distributed over the detection workers, then
+ * postprocessed in frame order, before the next group is preprocessed. Only the
+ * intermediate results of a group are alive at any time. Stages are expected
+ * to release the inputs they consume, like with {@link StreamingPipeline}. When
+ * a stage fails, the pipeline waits for the running tasks and releases every
+ * result not consumed yet with the given callbacks before reporting the
+ * failure.
+ *
+ * @param <P> Type of the preprocessing results.
+ * @param <D> Type of the detection results.
+ * @param <R> Type of the postprocessing results.
+ */
+public class SequentialPipeline<P, D, R> {
+
+	private final int groupSize;
+	private final int batchSize;
+	private final int detectionWorkers;
+	private final boolean parallelPreprocessing;
+
+	private final IntFunction<P> preprocess;
+	private final BiFunction<Integer, List<P>, List<D>> detect;
+	private final BiFunction<Integer, D, R> postprocess;
+	private final Consumer<P> releasePreprocessed;
+	private final Consumer<D> releaseDetected;
+
+	/**
+	 * @param groupSize Number of frames run through the three stages before the
+	 *          next ones are preprocessed.
+	 * @param batchSize Number of frames given at once to the detection stage.
+	 * @param detectionWorkers Number of detection workers running in parallel.
+	 * @param parallelPreprocessing Preprocess frames in parallel.
+	 * @param preprocess Preprocess the frame at a given position.
+	 * @param detect Detect objects on a batch of preprocessed frames with a given
+	 *          worker.
+	 * @param postprocess Postprocess the detections of the frame at a given
+	 *          position.
+	 * @param releasePreprocessed Release a preprocessing result which will never
+	 *          be detected.
+	 * @param releaseDetected Release a detection result which will never be
+	 *          postprocessed.
+	 */
+	public SequentialPipeline(int groupSize, int batchSize, int detectionWorkers,
+		boolean parallelPreprocessing, IntFunction<P> preprocess,
+		BiFunction<Integer, List<P>, List<D>> detect, BiFunction<Integer, D, R> postprocess,
+		Consumer<P> releasePreprocessed, Consumer<D> releaseDetected)
+	{
+		this.groupSize = Math.max(groupSize, 1);
+		this.batchSize = Math.max(batchSize, 1);
+		this.detectionWorkers = Math.max(detectionWorkers, 1);
+		this.parallelPreprocessing = parallelPreprocessing;
+		this.preprocess = preprocess;
+		this.detect = detect;
+		this.postprocess = postprocess;
+		this.releasePreprocessed = releasePreprocessed;
+		this.releaseDetected = releaseDetected;
+	}
+
+	/**
+	 * Run the pipeline over a number of frames.
+	 *
+	 * @return The postprocessing results in frame order.
+	 */
+	public List<R> run(int nFrames) throws InterruptedException, ExecutionException {
+		List<R> results = new ArrayList<>(nFrames);
+		for (int start = 0; start < nFrames; start += groupSize) {
+			int end = Math.min(start + groupSize, nFrames);
+			List<D> detected = this.detectAll(this.preprocessAll(start, end));
+
+			int i = 0;
+			try {
+				for (; i < detected.size(); i++) {
+					results.add(postprocess.apply(start + i, detected.get(i)));
+				}
+			}
+			catch (RuntimeException exc) {
+				throw new ExecutionException(exc);
+			}
+			finally {
+				// The frame which failed has been released by the stage.
+				detected.subList(Math.min(i + 1, detected.size()), detected.size()).forEach(
+					releaseDetected);
+			}
+		}
+		return results;
+	}
+
+	// -- Helper methods --
+
+	private List<P> preprocessAll(int start, int end) throws InterruptedException,
+		ExecutionException
+	{
+		int nThreads = parallelPreprocessing ? Runtime.getRuntime().availableProcessors() : 1;
+		ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+		AtomicBoolean failed = new AtomicBoolean();
+		try {
+			List<Callable<P>> tasks = new ArrayList<>();
+			for (int i = start; i < end; i++) {
+				final int position = i;
+				tasks.add(() -> {
+					if (failed.get()) return null;
+					try {
+						return preprocess.apply(position);
+					}
+					catch (RuntimeException exc) {
+						failed.set(true);
+						throw exc;
+					}
+				});
+			}
+			return runAll(executor, tasks, releasePreprocessed);
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private List<D> detectAll(List<P> frames) throws InterruptedException, ExecutionException {
+		ExecutorService executor = Executors.newFixedThreadPool(detectionWorkers);
+		BlockingQueue<Integer> freeWorkers = new ArrayBlockingQueue<>(detectionWorkers);
+		for (int i = 0; i < detectionWorkers; i++) {
+			freeWorkers.add(i);
+		}
+
+		// Batches not started yet are released instead of detected once a batch
+		// failed.
+		AtomicBoolean failed = new AtomicBoolean();
+		List<Callable<List<D>>> tasks = new ArrayList<>();
+		for (int start = 0; start < frames.size(); start += batchSize) {
+			List<P> batch = new ArrayList<>(frames.subList(start, Math.min(start + batchSize, frames
+				.size())));
+			tasks.add(() -> {
+				if (failed.get()) {
+					batch.forEach(releasePreprocessed);
+					return null;
+				}
+
+				// A worker only runs one batch at a time.
+				int worker;
+				try {
+					worker = freeWorkers.take();
+				}
+				catch (InterruptedException exc) {
+					batch.forEach(releasePreprocessed);
+					throw exc;
+				}
+				try {
+					return detect.apply(worker, batch);
+				}
+				catch (RuntimeException exc) {
+					failed.set(true);
+					throw exc;
+				}
+				finally {
+					freeWorkers.add(worker);
+				}
+			});
+		}
+
+		try {
+			List<D> detected = new ArrayList<>(frames.size());
+			for (List<D> outputs : runAll(executor, tasks, outputs -> outputs.forEach(
+				releaseDetected)))
+			{
+				detected.addAll(outputs);
+			}
+			return detected;
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Run tasks and wait for all of them. When a task fails or the wait is
+	 * interrupted, the results of the other tasks are released once they are all
+	 * done, and the first failure is thrown.
+	 */
+	private static <T> List<T> runAll(ExecutorService executor, List<Callable<T>> tasks,
+		Consumer<T> release) throws InterruptedException, ExecutionException
+	{
+		List<Future<T>> futures = new ArrayList<>(tasks.size());
+		for (Callable<T> task : tasks) {
+			futures.add(executor.submit(task));
+		}
+
+		List<T> results = new ArrayList<>(tasks.size());
+		ExecutionException failure = null;
+		InterruptedException interruption = null;
+		for (Future<T> future : futures) {
+			while (true) {
+				try {
+					results.add(future.get());
+					break;
+				}
+				catch (ExecutionException exc) {
+					if (failure == null) failure = exc;
+					break;
+				}
+				catch (InterruptedException exc) {
+					// The task still owns its inputs so it is waited for.
+					interruption = exc;
+				}
+			}
+		}
+
+		if (failure != null || interruption != null) {
+			for (T result : results) {
+				if (result != null) release.accept(result);
+			}
+			if (interruption != null) throw interruption;
+			throw failure;
+		}
+		return results;
+	}
+
+}
@@ -0,0 +1,78 @@
+
+package sc.fiji.maskflow.internal;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Thread settings of a TensorFlow session.
+ * <p>
+ * The settings are serialized as a ConfigProto message by hand to avoid a
+ * dependency on the TensorFlow protocol buffers. A value of 0 leaves the choice
+ * to TensorFlow. When the inter-op thread count is set, the session also gets
+ * its own inter-op thread pool instead of the one shared by the process so
+ * several sessions can split a machine between them.
+ */
+public class SessionConfig {
+
+	public static final SessionConfig DEFAULT = new SessionConfig(0, 0);
+
+	// Field numbers in tensorflow/core/protobuf/config.proto.
+	private static final int INTRA_OP_PARALLELISM_THREADS = 2;
+	private static final int INTER_OP_PARALLELISM_THREADS = 5;
+	private static final int USE_PER_SESSION_THREADS = 9;
+
+	private final int intraOpThreads;
+	private final int interOpThreads;
+
+	public SessionConfig(int intraOpThreads, int interOpThreads) {
+		this.intraOpThreads = Math.max(intraOpThreads, 0);
+		this.interOpThreads = Math.max(interOpThreads, 0);
+	}
+
+	public int getIntraOpThreads() {
+		return intraOpThreads;
+	}
+
+	public int getInterOpThreads() {
+		return interOpThreads;
+	}
+
+	public boolean isDefault() {
+		return intraOpThreads == 0 && interOpThreads == 0;
+	}
+
+	/** Serialize the settings as a ConfigProto message. */
+	public byte[] toConfigProto() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		if (intraOpThreads > 0) {
+			writeVarintField(out, INTRA_OP_PARALLELISM_THREADS, intraOpThreads);
+		}
+		if (interOpThreads > 0) {
+			writeVarintField(out, INTER_OP_PARALLELISM_THREADS, interOpThreads);
+			writeVarintField(out, USE_PER_SESSION_THREADS, 1);
+		}
+		return out.toByteArray();
+	}
+
+	@Override
+	public String toString() {
+		return "intra=" + intraOpThreads + ",inter=" + interOpThreads;
+	}
+
+	// -- Helper methods --
+
+	private static void writeVarintField(ByteArrayOutputStream out, int field, int value) {
+		// Wire type 0 (varint).
+		writeVarint(out, field << 3);
+		writeVarint(out, value);
+	}
+
+	private static void writeVarint(ByteArrayOutputStream out, int value) {
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+}
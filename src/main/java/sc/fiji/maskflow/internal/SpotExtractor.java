@@ -0,0 +1,123 @@
+
+package sc.fiji.maskflow.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import fiji.plugin.trackmate.Spot;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import sc.fiji.maskflow.DetectionTable;
+
+/**
+ * Build the tracking spots from the masks of the detected objects.
+ * <p>
+ * The spot of an object is located at the centroid of the biggest
+ * 8-connected region of its mask. Masks are only read inside the bounding box
+ * of the object and objects are processed in parallel. Spots are created in
+ * table order so their IDs do not depend on the number of threads.
+ */
+public class SpotExtractor {
+
+	private static final double THRESHOLD = 0.5;
+
+	/**
+	 * @param masks The X, Y, N stack of masks, one plane per row of the table.
+	 * @param table The detected objects.
+	 * @return The spots in table order, with their ID and FRAME features set.
+	 */
+	public List<Spot> extract(RandomAccessibleInterval<? extends RealType<?>> masks,
+		DetectionTable table)
+	{
+		int n = (int) masks.dimension(2);
+
+		// x, y and size of each spot.
+		double[][] centroids = new double[n][];
+		IntStream.range(0, n).parallel().forEach(i -> centroids[i] = this.centroid(masks, table,
+			i));
+
+		List<Spot> spots = new ArrayList<>(n);
+		for (int i = 0; i < n; i++) {
+			Spot spot = new Spot(centroids[i][0], centroids[i][1], 0, 1, 1);
+			spot.getFeatures().put("ID", (double) i);
+			spot.getFeatures().put("SIZE", centroids[i][2]);
+			spot.getFeatures().put(Spot.FRAME, (double) table.getFrame(i));
+			spots.add(spot);
+		}
+		return spots;
+	}
+
+	private double[] centroid(RandomAccessibleInterval<? extends RealType<?>> masks,
+		DetectionTable table, int index)
+	{
+		int x0 = (int) Math.max(table.getX(index), masks.min(0));
+		int y0 = (int) Math.max(table.getY(index), masks.min(1));
+		int x1 = (int) Math.min(table.getX(index) + table.getWidth(index), masks.max(0) + 1);
+		int y1 = (int) Math.min(table.getY(index) + table.getHeight(index), masks.max(1) + 1);
+		int width = Math.max(x1 - x0, 0);
+		int height = Math.max(y1 - y0, 0);
+
+		// Threshold the mask inside the bounding box.
+		boolean[] foreground = new boolean[width * height];
+		RandomAccess<? extends RealType<?>> ra = masks.randomAccess();
+		ra.setPosition(index, 2);
+		for (int y = 0; y < height; y++) {
+			ra.setPosition(y0 + y, 1);
+			for (int x = 0; x < width; x++) {
+				ra.setPosition(x0 + x, 0);
+				foreground[y * width + x] = ra.get().getRealDouble() >= THRESHOLD;
+			}
+		}
+
+		// Flood fill the 8-connected regions and keep the biggest one (the first
+		// one in raster order on ties).
+		boolean[] visited = new boolean[foreground.length];
+		int[] stack = new int[foreground.length];
+		int bestSize = 0;
+		double bestX = x0 + width / 2.0;
+		double bestY = y0 + height / 2.0;
+
+		for (int start = 0; start < foreground.length; start++) {
+			if (!foreground[start] || visited[start]) continue;
+
+			int size = 0;
+			long sumX = 0;
+			long sumY = 0;
+			int top = 0;
+			stack[top++] = start;
+			visited[start] = true;
+			while (top > 0) {
+				int pixel = stack[--top];
+				int px = pixel % width;
+				int py = pixel / width;
+				size++;
+				sumX += px;
+				sumY += py;
+				for (int dy = -1; dy <= 1; dy++) {
+					int ny = py + dy;
+					if (ny < 0 || ny >= height) continue;
+					for (int dx = -1; dx <= 1; dx++) {
+						int nx = px + dx;
+						if (nx < 0 || nx >= width) continue;
+						int neighbour = ny * width + nx;
+						if (foreground[neighbour] && !visited[neighbour]) {
+							visited[neighbour] = true;
+							stack[top++] = neighbour;
+						}
+					}
+				}
+			}
+
+			if (size > bestSize) {
+				bestSize = size;
+				bestX = x0 + (double) sumX / size;
+				bestY = y0 + (double) sumY / size;
+			}
+		}
+
+		return new double[] { bestX, bestY, bestSize };
+	}
+
+}
@@ -0,0 +1,234 @@
+
+package sc.fiji.maskflow.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/**
+ * Stream frames through the preprocessing, detection and postprocessing stages.
+ * <p>
+ * Each stage runs on its own worker and stages are connected with bounded
+ * queues so the number of frames in flight (and so the memory used by
+ * intermediate results) is set by the queue depth instead of the number of
+ * frames. Stages are expected to release the inputs they consume. When a
+ * stage fails, the results still waiting in the queues are released with the
+ * given callbacks once all the workers stopped. Several
+ * detection workers can run in parallel, each of them with its own index (for
+ * example to use its own session).
+ *
+ * @param <P> Type of the preprocessing results.
+ * @param <D> Type of the detection results.
+ * @param <R> Type of the postprocessing results.
+ */
+public class StreamingPipeline<P, D, R> {
+
+	private final int queueDepth;
+	private final int batchSize;
+	private final int detectionWorkers;
+
+	private final IntFunction<P> preprocess;
+	private final BiFunction<Integer, List<P>, List<D>> detect;
+	private final BiFunction<Integer, D, R> postprocess;
+	private final Consumer<P> releasePreprocessed;
+	private final Consumer<D> releaseDetected;
+
+	/**
+	 * @param queueDepth Maximum number of frames waiting between two stages.
+	 * @param batchSize Number of frames given at once to the detection stage.
+	 * @param detectionWorkers Number of detection workers running in parallel.
+	 * @param preprocess Preprocess the frame at a given position.
+	 * @param detect Detect objects on a batch of preprocessed frames with a given
+	 *          worker.
+	 * @param postprocess Postprocess the detections of the frame at a given
+	 *          position.
+	 */
+	public StreamingPipeline(int queueDepth, int batchSize, int detectionWorkers,
+		IntFunction<P> preprocess, BiFunction<Integer, List<P>, List<D>> detect,
+		BiFunction<Integer, D, R> postprocess)
+	{
+		this(queueDepth, batchSize, detectionWorkers, preprocess, detect, postprocess, value -> {},
+			value -> {});
+	}
+
+	/**
+	 * @param releasePreprocessed Release a preprocessing result which will never
+	 *          be detected.
+	 * @param releaseDetected Release a detection result which will never be
+	 *          postprocessed.
+	 * @see #StreamingPipeline(int, int, int, IntFunction, BiFunction,
+	 *      BiFunction)
+	 */
+	public StreamingPipeline(int queueDepth, int batchSize, int detectionWorkers,
+		IntFunction<P> preprocess, BiFunction<Integer, List<P>, List<D>> detect,
+		BiFunction<Integer, D, R> postprocess, Consumer<P> releasePreprocessed,
+		Consumer<D> releaseDetected)
+	{
+		this.queueDepth = Math.max(queueDepth, 1);
+		this.batchSize = Math.max(batchSize, 1);
+		this.detectionWorkers = Math.max(detectionWorkers, 1);
+		this.preprocess = preprocess;
+		this.detect = detect;
+		this.postprocess = postprocess;
+		this.releasePreprocessed = releasePreprocessed;
+		this.releaseDetected = releaseDetected;
+	}
+
+	/**
+	 * Run the pipeline over a number of frames.
+	 *
+	 * @return The postprocessing results in frame order.
+	 */
+	public List<R> run(int nFrames) throws InterruptedException, ExecutionException {
+
+		final BlockingQueue<Item<P>> preprocessed = new ArrayBlockingQueue<>(queueDepth);
+		final BlockingQueue<Item<D>> detected = new ArrayBlockingQueue<>(queueDepth);
+		final Object[] results = new Object[nFrames];
+
+		final ExecutorService executor = Executors.newFixedThreadPool(2 + detectionWorkers);
+		final CompletionService<Void> workers = new ExecutorCompletionService<>(executor);
+		final AtomicInteger runningDetectionWorkers = new AtomicInteger(detectionWorkers);
+
+		try {
+			workers.submit(() -> {
+				for (int i = 0; i < nFrames; i++) {
+					put(preprocessed, new Item<>(i, preprocess.apply(i)), releasePreprocessed);
+				}
+				preprocessed.put(Item.end());
+				return null;
+			});
+
+			for (int w = 0; w < detectionWorkers; w++) {
+				final int worker = w;
+				workers.submit(() -> {
+					final List<Item<P>> batch = new ArrayList<>(batchSize);
+					Item<P> item;
+					try {
+						do {
+							item = preprocessed.take();
+							if (!item.isEnd()) batch.add(item);
+							if (batch.size() == batchSize || (item.isEnd() && !batch.isEmpty())) {
+								final List<P> values = new ArrayList<>(batch.size());
+								final int[] indexes = new int[batch.size()];
+								for (int i = 0; i < batch.size(); i++) {
+									values.add(batch.get(i).value);
+									indexes[i] = batch.get(i).index;
+								}
+
+								// From now on the inputs are owned by the detection stage.
+								batch.clear();
+								final List<D> outputs = detect.apply(worker, values);
+								for (int i = 0; i < outputs.size(); i++) {
+									try {
+										put(detected, new Item<>(indexes[i], outputs.get(i)), releaseDetected);
+									}
+									catch (InterruptedException exc) {
+										outputs.subList(i + 1, outputs.size()).forEach(releaseDetected);
+										throw exc;
+									}
+								}
+							}
+						}
+						while (!item.isEnd());
+					}
+					finally {
+						// Frames taken from the queue but not handed to the detection yet.
+						for (Item<P> frame : batch) {
+							releasePreprocessed.accept(frame.value);
+						}
+					}
+
+					// Let the other detection workers see the end too. The last one to
+					// stop ends the postprocessing.
+					preprocessed.put(item);
+					if (runningDetectionWorkers.decrementAndGet() == 0) {
+						detected.put(Item.end());
+					}
+					return null;
+				});
+			}
+
+			workers.submit(() -> {
+				Item<D> item;
+				while (!(item = detected.take()).isEnd()) {
+					results[item.index] = postprocess.apply(item.index, item.value);
+				}
+				return null;
+			});
+
+			// Wait for the workers and stop everything as soon as one of them fails
+			// so the others do not wait forever on the queues.
+			for (int i = 0; i < 2 + detectionWorkers; i++) {
+				workers.take().get();
+			}
+		}
+		finally {
+			executor.shutdownNow();
+
+			// Nothing is added to the queues once the workers stopped.
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			release(preprocessed, releasePreprocessed);
+			release(detected, releaseDetected);
+		}
+
+		@SuppressWarnings("unchecked")
+		final List<R> ordered = (List<R>) Arrays.asList(results);
+		return ordered;
+	}
+
+	// -- Helper methods --
+
+	// Put an item in a queue or release it when interrupted.
+	private static <T> void put(BlockingQueue<Item<T>> queue, Item<T> item, Consumer<T> release)
+		throws InterruptedException
+	{
+		try {
+			queue.put(item);
+		}
+		catch (InterruptedException exc) {
+			release.accept(item.value);
+			throw exc;
+		}
+	}
+
+	private static <T> void release(BlockingQueue<Item<T>> queue, Consumer<T> release) {
+		Item<T> item;
+		while ((item = queue.poll()) != null) {
+			if (!item.isEnd()) {
+				release.accept(item.value);
+			}
+		}
+	}
+
+	private static class Item<T> {
+
+		private final int index;
+		private final T value;
+
+		private Item(int index, T value) {
+			this.index = index;
+			this.value = value;
+		}
+
+		private static <T> Item<T> end() {
+			return new Item<>(-1, null);
+		}
+
+		private boolean isEnd() {
+			return index < 0;
+		}
+	}
+
+}
@@ -0,0 +1,76 @@
+
+package sc.fiji.maskflow.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.tensorflow.Tensor;
+
+/**
+ * Owns native tensors and closes them all at once.
+ * <p>
+ * Tensors flowing between the MaskRCNN commands follow a simple ownership
+ * rule: a command owns (and closes) the tensors it creates for its own use,
+ * its inputs stay owned by the caller and its outputs are handed over to the
+ * caller. Callers track the tensors they own in a scope and close it when the
+ * next stage has consumed them.
+ */
+public class TensorScope implements AutoCloseable {
+
+	private final Set<Tensor<?>> tensors = Collections.newSetFromMap(new IdentityHashMap<>());
+
+	/** Take ownership of a tensor. */
+	public synchronized <T> Tensor<T> track(Tensor<T> tensor) {
+		if (tensor != null) {
+			tensors.add(tensor);
+		}
+		return tensor;
+	}
+
+	/** Take ownership of several tensors. */
+	public synchronized void trackAll(Iterable<? extends Tensor<?>> tensors) {
+		for (Tensor<?> tensor : tensors) {
+			track(tensor);
+		}
+	}
+
+	/** Give up the ownership of a tensor without closing it. */
+	public synchronized <T> Tensor<T> detach(Tensor<T> tensor) {
+		tensors.remove(tensor);
+		return tensor;
+	}
+
+	/** Close a tensor now and stop tracking it. */
+	public synchronized void release(Tensor<?> tensor) {
+		if (tensor != null && tensors.remove(tensor)) {
+			tensor.close();
+		}
+	}
+
+	/** Number of tensors currently owned by the scope. */
+	public synchronized int size() {
+		return tensors.size();
+	}
+
+	@Override
+	public synchronized void close() {
+		List<Tensor<?>> toClose = new ArrayList<>(tensors);
+		tensors.clear();
+		for (Tensor<?> tensor : toClose) {
+			tensor.close();
+		}
+	}
+
+	/** Close tensors that are not tracked by any scope. */
+	public static void closeAll(Iterable<? extends Tensor<?>> tensors) {
+		for (Tensor<?> tensor : tensors) {
+			if (tensor != null) {
+				tensor.close();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,149 @@
+
+package sc.fiji.maskflow.internal;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+
+/**
+ * Cut a frame into overlapping tiles and merge the detections of the tiles.
+ * <p>
+ * Tiles have the same size (except when the frame is smaller than a tile) and
+ * the last tile of a row or a column is aligned on the border of the frame.
+ * Objects cut by a seam are detected in several tiles: the detections of
+ * different tiles covering the same object are merged with a non-maximum
+ * suppression on the masks, keeping the detections away from the seams first.
+ */
+public class TileGrid {
+
+	private final long width;
+	private final long height;
+	private final List<Interval> tiles = new ArrayList<>();
+
+	/** A grid with a single tile covering the whole frame. */
+	public TileGrid(long width, long height) {
+		this(width, height, (int) Math.max(width, height), 0);
+	}
+
+	/**
+	 * @param width Width of the frame.
+	 * @param height Height of the frame.
+	 * @param tileSize Size of a square tile.
+	 * @param overlap Number of pixels shared by two neighbour tiles.
+	 */
+	public TileGrid(long width, long height, int tileSize, int overlap) {
+		if (tileSize <= 0 || overlap < 0 || overlap >= tileSize) {
+			throw new IllegalArgumentException("Invalid tile size (" + tileSize + ") or overlap (" +
+				overlap + ").");
+		}
+		this.width = width;
+		this.height = height;
+		for (long y : starts(height, tileSize, overlap)) {
+			for (long x : starts(width, tileSize, overlap)) {
+				tiles.add(new FinalInterval(new long[] { x, y }, new long[] { Math.min(x + tileSize,
+					width) - 1, Math.min(y + tileSize, height) - 1 }));
+			}
+		}
+	}
+
+	public List<Interval> getTiles() {
+		return tiles;
+	}
+
+	public int size() {
+		return tiles.size();
+	}
+
+	/**
+	 * Merge the detections of the tiles of a frame.
+	 *
+	 * @param detections The detections of each tile, in frame coordinates.
+	 * @param threshold Two detections of different tiles are merged when the
+	 *          intersection of their masks covers more than this fraction of
+	 *          the smallest one.
+	 * @return The merged detections sorted by score.
+	 */
+	public List<Detection> merge(List<List<Detection>> detections, double threshold) {
+		if (tiles.size() == 1) {
+			return detections.get(0);
+		}
+
+		List<Candidate> candidates = new ArrayList<>();
+		for (int t = 0; t < tiles.size(); t++) {
+			for (Detection detection : detections.get(t)) {
+				candidates.add(new Candidate(detection, t, touchesSeam(detection, tiles.get(t))));
+			}
+		}
+
+		// Detections cut by a seam only come after the complete ones.
+		candidates.sort(Comparator.comparing((Candidate c) -> c.onSeam).thenComparing(
+			c -> -c.detection.getScore()).thenComparing(c -> -c.area));
+
+		List<Candidate> kept = new ArrayList<>();
+		for (Candidate candidate : candidates) {
+			boolean duplicate = false;
+			for (Candidate other : kept) {
+				// Detections of the same tile have already been suppressed by the model.
+				if (other.tile == candidate.tile || !other.detection.overlaps(candidate.detection)) {
+					continue;
+				}
+				int smallest = Math.min(other.area, candidate.area);
+				if (smallest == 0 || other.detection.getMask().intersection(candidate.detection
+					.getMask()) > threshold * smallest)
+				{
+					duplicate = true;
+					break;
+				}
+			}
+			if (!duplicate) {
+				kept.add(candidate);
+			}
+		}
+
+		List<Detection> merged = new ArrayList<>(kept.size());
+		for (Candidate candidate : kept) {
+			merged.add(candidate.detection);
+		}
+		merged.sort(Comparator.comparing(Detection::getScore).reversed());
+		return merged;
+	}
+
+	// -- Helper methods --
+
+	private boolean touchesSeam(Detection d, Interval tile) {
+		return (d.getX() <= tile.min(0) && tile.min(0) > 0) || (d.getY() <= tile.min(1) && tile
+			.min(1) > 0) || (d.getX() + d.getWidth() > tile.max(0) && tile.max(0) < width - 1) || (d
+				.getY() + d.getHeight() > tile.max(1) && tile.max(1) < height - 1);
+	}
+
+	private static List<Long> starts(long size, int tileSize, int overlap) {
+		List<Long> starts = new ArrayList<>();
+		long step = tileSize - overlap;
+		long start = 0;
+		while (start + tileSize < size) {
+			starts.add(start);
+			start += step;
+		}
+		starts.add(Math.max(size - tileSize, 0));
+		return starts;
+	}
+
+	private static class Candidate {
+
+		private final Detection detection;
+		private final int tile;
+		private final boolean onSeam;
+		private final int area;
+
+		private Candidate(Detection detection, int tile, boolean onSeam) {
+			this.detection = detection;
+			this.tile = tile;
+			this.onSeam = onSeam;
+			this.area = detection.getMask().getArea();
+		}
+	}
+
+}
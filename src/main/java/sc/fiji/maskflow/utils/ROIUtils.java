@@ -2,16 +2,17 @@
 package sc.fiji.maskflow.utils;
 
 import java.awt.Color;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
-import org.scijava.table.GenericColumn;
 import org.scijava.table.GenericTable;
 
 import ij.ImagePlus;
 import ij.gui.Roi;
 import ij.plugin.frame.RoiManager;
 import net.imglib2.display.ColorTable;
+import sc.fiji.maskflow.DetectionTable;
 
 public class ROIUtils {
 
@@ -33,6 +34,9 @@ public class ROIUtils {
 			rm.reset();
 		}
 
+		// Tables written by older versions store Strings.
+		DetectionTable detections = DetectionTable.of(table);
+
 		int x;
 		int y;
 		int width;
@@ -40,43 +44,40 @@ public class ROIUtils {
 		int frame;
 		int id;
 		int classID;
-		double score;
+		float score;
 		Roi roi;
 		int objectID;
 		int r;
 		int g;
 		int b;
 
+		boolean colorObjects = detections.hasObjectIds() && colorTable != null;
 		int totalObjects = 0;
-
-		try {
-			GenericColumn col = (GenericColumn) table.get("object_id");
-			totalObjects = (int) col.stream().map(v -> Integer.valueOf((String) v)).distinct().count();
-		}
-		catch (IllegalArgumentException e) {
-			// Do nothing
+		if (colorObjects) {
+			totalObjects = (int) Arrays.stream(detections.getObjectIds(), 0, detections.getRowCount())
+				.distinct().count();
 		}
 
 		Map<Integer, Color> colors = new HashMap<>();
 
-		for (int row = 0; row < table.getRowCount(); row++) {
+		for (int row = 0; row < detections.getRowCount(); row++) {
 
-			id = Integer.valueOf((String) table.get("id", row));
-			x = Integer.valueOf((String) table.get("x", row));
-			y = Integer.valueOf((String) table.get("y", row));
-			width = Integer.valueOf((String) table.get("width", row));
-			height = Integer.valueOf((String) table.get("height", row));
-			frame = Integer.valueOf((String) table.get("frame", row));
-			classID = Integer.valueOf((String) table.get("class_id", row));
-			score = Double.valueOf((String) table.get("score", row));
+			id = detections.getId(row);
+			x = detections.getX(row);
+			y = detections.getY(row);
+			width = detections.getWidth(row);
+			height = detections.getHeight(row);
+			frame = detections.getFrame(row);
+			classID = detections.getClassId(row);
+			score = detections.getScore(row);
 
 			roi = new Roi(x, y, width, height);
 			roi.setPosition(frame + 1);
 			roi.setName("BBox-" + id + "-Score-" + score + "-ClassID-" + classID + "-Frame-" + frame);
 
-			try {
-				objectID = Integer.valueOf((String) table.get("object_id", row));
-				if (!colors.keySet().contains(objectID)) {
+			if (colorObjects) {
+				objectID = detections.getObjectId(row);
+				if (!colors.containsKey(objectID)) {
 					r = colorTable.getResampled(0, totalObjects, objectID);
 					g = colorTable.getResampled(1, totalObjects, objectID);
 					b = colorTable.getResampled(2, totalObjects, objectID);
@@ -84,9 +85,6 @@ public class ROIUtils {
 				}
 				roi.setStrokeColor(colors.get(objectID));
 			}
-			catch (IllegalArgumentException e) {
-				// Do nothing
-			}
 
 			rm.add((ImagePlus) null, roi, frame + 1);
 		}
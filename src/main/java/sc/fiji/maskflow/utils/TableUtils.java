@@ -0,0 +1,53 @@
+
+package sc.fiji.maskflow.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.scijava.table.GenericTable;
+
+public class TableUtils {
+
+	/** Write a table as a CSV file with a header line. */
+	static public void writeCSV(GenericTable table, File file) throws IOException {
+		try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+			writeCSVHeader(table, writer);
+			writeCSVRows(table, 0, table.getRowCount(), writer);
+		}
+	}
+
+	/** Write the header line of a table. */
+	static public void writeCSVHeader(GenericTable table, Writer writer) throws IOException {
+		for (int col = 0; col < table.getColumnCount(); col++) {
+			if (col > 0) writer.write(',');
+			String header = table.getColumnHeader(col);
+			writer.write(header != null ? escape(header) : "");
+		}
+		writer.write('\n');
+	}
+
+	/** Write rows of a table, from start (inclusive) to end (exclusive). */
+	static public void writeCSVRows(GenericTable table, int start, int end, Writer writer)
+		throws IOException
+	{
+		for (int row = start; row < end; row++) {
+			for (int col = 0; col < table.getColumnCount(); col++) {
+				if (col > 0) writer.write(',');
+				Object value = table.get(col, row);
+				writer.write(value != null ? escape(value.toString()) : "");
+			}
+			writer.write('\n');
+		}
+	}
+
+	private static String escape(String value) {
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+			return value;
+		}
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+
+}
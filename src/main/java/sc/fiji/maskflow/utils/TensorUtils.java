@@ -1,28 +1,195 @@
 
 package sc.fiji.maskflow.utils;
 
-import org.tensorflow.Graph;
-import org.tensorflow.Output;
-import org.tensorflow.Session;
-import org.tensorflow.Tensor;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
-import net.imagej.tensorflow.GraphBuilder;
+import org.tensorflow.DataType;
+import org.tensorflow.Tensor;
+import org.tensorflow.types.UInt8;
 
 public class TensorUtils {
 
+	// Larger buffers are allocated for a single use so a thread does not hold on
+	// a huge buffer.
+	private static final int MAX_SCRATCH_BYTES = 64 * 1024 * 1024;
+
+	private static final ThreadLocal<ByteBuffer> SCRATCH = new ThreadLocal<>();
+
+	/**
+	 * Insert a dimension of size one at the given position. Negative positions
+	 * are counted from the end (-1 appends a dimension).
+	 */
 	public static Tensor<?> expandDimension(Tensor<?> tensor, int dimension) {
-		try (Graph g = new Graph()) {
-			final GraphBuilder b = new GraphBuilder(g);
+		final long[] shape = tensor.shape();
+		final int position = dimension < 0 ? shape.length + 1 + dimension : dimension;
+		if (position < 0 || position > shape.length) {
+			throw new IllegalArgumentException("Invalid dimension " + dimension + " for " + tensor);
+		}
+
+		final long[] newShape = new long[shape.length + 1];
+		System.arraycopy(shape, 0, newShape, 0, position);
+		newShape[position] = 1;
+		System.arraycopy(shape, position, newShape, position + 1, shape.length - position);
+		return reshape(tensor, newShape);
+	}
+
+	/**
+	 * Remove a dimension of size one at the given position. Negative positions
+	 * are counted from the end.
+	 */
+	public static Tensor<?> squeezeDimension(Tensor<?> tensor, int dimension) {
+		final long[] shape = tensor.shape();
+		final int position = dimension < 0 ? shape.length + dimension : dimension;
+		if (position < 0 || position >= shape.length || shape[position] != 1) {
+			throw new IllegalArgumentException("Can't squeeze dimension " + dimension + " of " +
+				tensor);
+		}
+
+		final long[] newShape = new long[shape.length - 1];
+		System.arraycopy(shape, 0, newShape, 0, position);
+		System.arraycopy(shape, position + 1, newShape, position, shape.length - position - 1);
+		return reshape(tensor, newShape);
+	}
+
+	/**
+	 * Give a new shape to a tensor without changing its data.
+	 * <p>
+	 * The raw data is copied once into a reused direct buffer and wrapped with
+	 * the new shape. No graph or session is involved. The Java API does not allow
+	 * two tensors to share the same native memory so this single copy is the
+	 * cheapest possible reshape.
+	 */
+	public static Tensor<?> reshape(Tensor<?> tensor, long... shape) {
+		long numElements = 1;
+		for (long size : shape) {
+			numElements *= size;
+		}
+		if (numElements != tensor.numElements()) {
+			throw new IllegalArgumentException("Can't reshape " + tensor + " to " + Arrays.toString(
+				shape));
+		}
+
+		final ByteBuffer buffer = scratch(tensor.numBytes());
+		tensor.writeTo(buffer);
+		buffer.flip();
+		return Tensor.create(typeOf(tensor.dataType()), shape, buffer);
+	}
+
+	/**
+	 * Stack tensors of identical shape and type along a new first dimension.
+	 */
+	public static Tensor<?> stack(List<Tensor<?>> tensors) {
+		final Tensor<?> first = tensors.get(0);
+
+		final long[] shape = new long[first.numDimensions() + 1];
+		shape[0] = tensors.size();
+		System.arraycopy(first.shape(), 0, shape, 1, first.numDimensions());
 
-			final Output input = b.constant("input", tensor);
-			final Output output = g.opBuilder("ExpandDims", "ExpandDims").addInput(input).addInput(b
-				.constant("dimension", dimension)).build().output(0);
+		final ByteBuffer buffer = scratch((long) first.numBytes() * tensors.size());
+		for (Tensor<?> tensor : tensors) {
+			if (tensor.dataType() != first.dataType() || !Arrays.equals(tensor.shape(), first
+				.shape()))
+			{
+				throw new IllegalArgumentException("Can't stack tensors of different shapes or types: " +
+					first + " and " + tensor);
+			}
+			tensor.writeTo(buffer);
+		}
+		buffer.flip();
+
+		return Tensor.create(typeOf(first.dataType()), shape, buffer);
+	}
+
+	/**
+	 * Split a tensor along its first dimension. Each part keeps a first
+	 * dimension of size one so it can be fed back to the graphs expecting a
+	 * batch of one.
+	 */
+	public static List<Tensor<?>> split(Tensor<?> tensor) {
+		final int n = (int) tensor.shape()[0];
+		final long[] shape = tensor.shape();
+		shape[0] = 1;
+
+		final ByteBuffer buffer = scratch(tensor.numBytes());
+		tensor.writeTo(buffer);
+
+		final int partBytes = tensor.numBytes() / Math.max(n, 1);
+		final List<Tensor<?>> parts = new ArrayList<>(n);
+		for (int i = 0; i < n; i++) {
+			buffer.limit((i + 1) * partBytes);
+			buffer.position(i * partBytes);
+			parts.add(Tensor.create(typeOf(tensor.dataType()), shape, buffer.slice().order(ByteOrder
+				.nativeOrder())));
+		}
+		return parts;
+	}
 
-			try (Session s = new Session(g)) {
-				Tensor<?> result = (Tensor<?>) s.runner().fetch(output.op().name()).run().get(0);
-				return result;
+	/** Get the Java class used by TensorFlow for a given data type. */
+	public static Class<?> typeOf(DataType dataType) {
+		switch (dataType) {
+			case FLOAT:
+				return Float.class;
+			case DOUBLE:
+				return Double.class;
+			case INT32:
+				return Integer.class;
+			case INT64:
+				return Long.class;
+			case UINT8:
+				return UInt8.class;
+			case BOOL:
+				return Boolean.class;
+			default:
+				throw new IllegalArgumentException("Unsupported tensor type: " + dataType);
+		}
+	}
+
+	/**
+	 * Read a float tensor into a direct buffer reused by the calling thread so
+	 * nothing is allocated on the Java heap. The content is only valid until the
+	 * next call from the same thread.
+	 *
+	 * @throws IllegalArgumentException If the tensor is larger than 2 GB.
+	 */
+	public static FloatBuffer readFloats(Tensor<?> tensor) {
+		if (tensor.dataType() != DataType.FLOAT) {
+			throw new IllegalArgumentException("Not a float tensor: " + tensor);
+		}
+		long numElements = 1;
+		for (long size : tensor.shape()) {
+			numElements *= size;
+		}
+
+		final ByteBuffer buffer = scratch(4 * numElements);
+		tensor.writeTo(buffer);
+		buffer.flip();
+		return buffer.asFloatBuffer();
+	}
+
+	/**
+	 * Get a cleared direct buffer of at least the given size. The buffer is
+	 * reused by the calling thread so it must not escape: tensors created from
+	 * it copy its content.
+	 */
+	private static ByteBuffer scratch(long numBytes) {
+		if (numBytes > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Tensor too large: " + numBytes + " bytes.");
+		}
+		ByteBuffer buffer = SCRATCH.get();
+		if (buffer == null || buffer.capacity() < numBytes) {
+			buffer = ByteBuffer.allocateDirect((int) numBytes).order(ByteOrder.nativeOrder());
+			if (numBytes <= MAX_SCRATCH_BYTES) {
+				SCRATCH.set(buffer);
 			}
 		}
+		buffer.clear();
+		buffer.limit((int) numBytes);
+		return buffer;
 	}
 
 }
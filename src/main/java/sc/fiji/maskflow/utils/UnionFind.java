@@ -0,0 +1,57 @@
+
+package sc.fiji.maskflow.utils;
+
+/**
+ * Disjoint sets over the integers 0 to n - 1 with path compression and union
+ * by size.
+ */
+public class UnionFind {
+
+	private final int[] parents;
+	private final int[] sizes;
+
+	public UnionFind(int n) {
+		parents = new int[n];
+		sizes = new int[n];
+		for (int i = 0; i < n; i++) {
+			parents[i] = i;
+			sizes[i] = 1;
+		}
+	}
+
+	/** Get the representative of the set of an element. */
+	public int find(int i) {
+		int root = i;
+		while (parents[root] != root) {
+			root = parents[root];
+		}
+		while (parents[i] != root) {
+			int next = parents[i];
+			parents[i] = root;
+			i = next;
+		}
+		return root;
+	}
+
+	/** Merge the sets of two elements. */
+	public void union(int i, int j) {
+		int rootI = find(i);
+		int rootJ = find(j);
+		if (rootI == rootJ) {
+			return;
+		}
+		if (sizes[rootI] < sizes[rootJ]) {
+			int tmp = rootI;
+			rootI = rootJ;
+			rootJ = tmp;
+		}
+		parents[rootJ] = rootI;
+		sizes[rootI] += sizes[rootJ];
+	}
+
+	/** Get the number of elements in the set of an element. */
+	public int size(int i) {
+		return sizes[find(i)];
+	}
+
+}
@@ -0,0 +1,56 @@
+
+package sc.fiji.maskflow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import sc.fiji.maskflow.internal.BatchManifest;
+
+public class TestBatchManifest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testResume() throws IOException {
+		Path directory = folder.getRoot().toPath();
+		Path manifestFile = directory.resolve(BatchObjectsDetector.MANIFEST_FILENAME);
+		Path first = Files.write(directory.resolve("first.tif"), new byte[] { 1, 2, 3 });
+		Path second = Files.write(directory.resolve("second.tif"), new byte[] { 4, 5 });
+
+		BatchManifest manifest = new BatchManifest(manifestFile, directory);
+		manifest.markDone(first);
+		assertTrue(manifest.isDone(first));
+		assertFalse(manifest.isDone(second));
+
+		// A line cut by a crash is ignored.
+		Files.write(manifestFile, "2\t".getBytes(StandardCharsets.UTF_8),
+			StandardOpenOption.APPEND);
+
+		manifest = new BatchManifest(manifestFile, directory);
+		assertEquals(1, manifest.size());
+		assertTrue(manifest.isDone(first));
+		assertFalse(manifest.isDone(second));
+
+		// Records written after a cut line are kept.
+		manifest.markDone(second);
+		manifest = new BatchManifest(manifestFile, directory);
+		assertTrue(manifest.isDone(second));
+
+		// A modified file is processed again.
+		Files.write(first, new byte[] { 1, 2, 3, 4 });
+		assertFalse(manifest.isDone(first));
+	}
+
+}
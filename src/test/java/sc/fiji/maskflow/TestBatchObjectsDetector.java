@@ -0,0 +1,174 @@
+
+package sc.fiji.maskflow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.scijava.command.CommandInfo;
+import org.scijava.command.CommandModule;
+import org.scijava.table.GenericTable;
+
+public class TestBatchObjectsDetector extends AbstractTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path directory;
+
+	@Before
+	public void createFiles() throws IOException {
+		directory = folder.getRoot().toPath();
+		for (String file : new String[] { "a.tif", "b.tif", "notes.txt", "sub/c.tif",
+			// Outputs of a previous run.
+			"a-objects.csv", "a-masks.tif", "b.tmp-masks.tif", "b-objects.csv.tmp",
+			BatchObjectsDetector.MANIFEST_FILENAME, "d-masks.n5/labels/0/0",
+			"e-masks.n5.tmp/attributes.json" })
+		{
+			Path path = directory.resolve(file);
+			Files.createDirectories(path.getParent());
+			Files.write(path, new byte[] { 1, 2, 3 });
+		}
+
+		StubBatchObjectsDetector.processed.clear();
+		StubBatchObjectsDetector.failing.clear();
+	}
+
+	@Test
+	public void testFindInputs() throws IOException {
+		// Outputs are never inputs, whatever the pattern.
+		assertEquals(Arrays.asList("a.tif", "b.tif", "notes.txt", "sub/c.tif"), this.findInputs(
+			"**"));
+
+		// The glob is matched against the relative path.
+		assertEquals(Arrays.asList("a.tif", "b.tif"), this.findInputs("*.tif"));
+		assertEquals(Arrays.asList("sub/c.tif"), this.findInputs("**/*.tif"));
+		assertEquals(Arrays.asList("a.tif", "b.tif", "sub/c.tif"), this.findInputs("**.tif"));
+	}
+
+	@Test
+	public void testIsOutput() {
+		assertTrue(BatchObjectsDetector.isOutput(directory.resolve("a-objects.csv")));
+		assertTrue(BatchObjectsDetector.isOutput(directory.resolve("a-masks.tif")));
+		assertTrue(BatchObjectsDetector.isOutput(directory.resolve("a.tmp")));
+		assertTrue(BatchObjectsDetector.isOutput(directory.resolve(
+			BatchObjectsDetector.MANIFEST_FILENAME)));
+		assertTrue(BatchObjectsDetector.isOutput(directory.resolve("a-masks.n5/labels/0/0")));
+		assertTrue(BatchObjectsDetector.isOutput(directory.resolve(
+			"a-masks.n5.tmp/attributes.json")));
+		assertFalse(BatchObjectsDetector.isOutput(directory.resolve("a.tif")));
+		assertFalse(BatchObjectsDetector.isOutput(directory.resolve("masks/a.tif")));
+	}
+
+	@Test
+	public void testResume() throws Exception {
+		// The second file fails and the others are recorded.
+		StubBatchObjectsDetector.failing.add("b.tif");
+		GenericTable summary = this.runBatch(true);
+		assertEquals(Arrays.asList("a.tif", "b.tif", "sub/c.tif"), this.getColumn(summary, "file"));
+		assertEquals(Arrays.asList("done", "failed: java.io.IOException: Stub failure", "done"),
+			this.getColumn(summary, "status"));
+		assertEquals(3, summary.get("objects", 0));
+		assertEquals(new HashSet<>(Arrays.asList("a.tif", "b.tif", "sub/c.tif")), this
+			.getProcessed());
+
+		// Only the failed file is processed again.
+		StubBatchObjectsDetector.failing.clear();
+		StubBatchObjectsDetector.processed.clear();
+		summary = this.runBatch(true);
+		assertEquals(Arrays.asList("skipped", "done", "skipped"), this.getColumn(summary,
+			"status"));
+		assertEquals(Collections.singleton("b.tif"), this.getProcessed());
+
+		// And so is a modified file.
+		Path modified = directory.resolve("sub/c.tif");
+		Files.setLastModifiedTime(modified, FileTime.fromMillis(Files.getLastModifiedTime(modified)
+			.toMillis() - 10000));
+		StubBatchObjectsDetector.processed.clear();
+		summary = this.runBatch(true);
+		assertEquals(Arrays.asList("skipped", "skipped", "done"), this.getColumn(summary,
+			"status"));
+		assertEquals(Collections.singleton("sub/c.tif"), this.getProcessed());
+
+		// Everything is processed without resuming.
+		StubBatchObjectsDetector.processed.clear();
+		summary = this.runBatch(false);
+		assertEquals(Arrays.asList("done", "done", "done"), this.getColumn(summary, "status"));
+		assertEquals(3, this.getProcessed().size());
+	}
+
+	/** Records the files instead of detecting objects. */
+	public static class StubBatchObjectsDetector extends BatchObjectsDetector {
+
+		static final Set<Path> processed = Collections.synchronizedSet(new HashSet<>());
+		static final Set<String> failing = Collections.synchronizedSet(new HashSet<>());
+
+		@Override
+		double[] process(Path input) throws Exception {
+			processed.add(input);
+			if (failing.contains(input.getFileName().toString())) {
+				throw new IOException("Stub failure");
+			}
+			return new double[] { Files.size(input), 0 };
+		}
+
+	}
+
+	// -- Helper methods --
+
+	private GenericTable runBatch(boolean resume) throws InterruptedException,
+		ExecutionException
+	{
+		Map<String, Object> inputs = new HashMap<>();
+		inputs.put("modelName", "Microtubule");
+		inputs.put("inputDirectory", directory.toFile());
+		inputs.put("pattern", "**.tif");
+		inputs.put("resume", resume);
+		CommandModule module = command.run(new CommandInfo(StubBatchObjectsDetector.class), true,
+			inputs).get();
+		return (GenericTable) module.getOutput("summary");
+	}
+
+	private List<String> findInputs(String pattern) throws IOException {
+		List<String> files = new ArrayList<>();
+		for (Path file : BatchObjectsDetector.findInputs(directory, pattern)) {
+			files.add(directory.relativize(file).toString().replace('\\', '/'));
+		}
+		return files;
+	}
+
+	private List<String> getColumn(GenericTable table, String column) {
+		List<String> values = new ArrayList<>();
+		for (int row = 0; row < table.getRowCount(); row++) {
+			values.add(table.get(column, row).toString().replace('\\', '/'));
+		}
+		return values;
+	}
+
+	private Set<String> getProcessed() {
+		Set<String> files = new HashSet<>();
+		for (Path file : StubBatchObjectsDetector.processed) {
+			files.add(directory.relativize(file).toString().replace('\\', '/'));
+		}
+		return files;
+	}
+
+}
@@ -0,0 +1,178 @@
+
+package sc.fiji.maskflow;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.scijava.Context;
+import org.scijava.io.location.FileLocation;
+
+public class TestCustomDownloadService extends AbstractTest {
+
+	private static final String IMAGEJ_DIR_PROPERTY = "imagej.dir";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private byte[] graph;
+	private byte[] config;
+	private File zipFile;
+
+	@Override
+	protected Context createContext() {
+		// Models are cached in the models directory of the application.
+		System.setProperty(IMAGEJ_DIR_PROPERTY, folder.getRoot().getPath());
+		return super.createContext();
+	}
+
+	@After
+	public void clearProperty() {
+		System.clearProperty(IMAGEJ_DIR_PROPERTY);
+	}
+
+	@Test
+	public void testDownloadAndUnpackFileLocation() throws IOException, InterruptedException,
+		ExecutionException
+	{
+		File destDir = new File(folder.getRoot(), "models/model");
+		CustomDownloadService service = context.service(CustomDownloadService.class);
+		service.downloadAndUnpackResource(new FileLocation(zipFile), destDir);
+
+		assertArrayEquals(graph, Files.readAllBytes(new File(destDir, "model/model.pb").toPath()));
+		assertArrayEquals(config, Files.readAllBytes(new File(destDir, "model/config.yml")
+			.toPath()));
+
+		// The model is marked as complete.
+		assertTrue(new File(destDir, CustomDownloadService.CHECKSUMS_FILE).isFile());
+
+		// The temporary archive has been removed.
+		File[] files = destDir.getParentFile().listFiles();
+		assertEquals(1, files.length);
+		assertTrue(files[0].isDirectory());
+	}
+
+	@Test
+	public void testLeftoverTemporaryDirectory() throws IOException {
+		// An unpack interrupted by a previous process.
+		File models = new File(folder.getRoot(), "models");
+		File leftover = new File(models, "model.tmp1234");
+		assertTrue(new File(leftover, "model").mkdirs());
+		Files.write(new File(leftover, "model/model.pb").toPath(), new byte[] { 1, 2, 3 });
+
+		CustomDownloadService service = context.service(CustomDownloadService.class);
+		File graphFile = service.loadFile(new FileLocation(zipFile), "model", "model/model.pb");
+
+		assertArrayEquals(graph, Files.readAllBytes(graphFile.toPath()));
+		assertTrue(service.verifyModel("model"));
+		assertFalse(leftover.exists());
+	}
+
+	@Test
+	public void testCorruptedFile() throws IOException {
+		CustomDownloadService service = context.service(CustomDownloadService.class);
+		File graphFile = service.loadFile(new FileLocation(zipFile), "model", "model/model.pb");
+		assertTrue(service.verifyModel("model"));
+
+		// Same size, different content.
+		byte[] corrupted = graph.clone();
+		corrupted[corrupted.length / 2] ^= 0xff;
+		Files.write(graphFile.toPath(), corrupted);
+		assertFalse(service.verifyModel("model"));
+
+		// The next process checks the model before reusing it and installs it
+		// again.
+		this.cleanUp();
+		this.setUp();
+		service = context.service(CustomDownloadService.class);
+		graphFile = service.loadFile(new FileLocation(zipFile), "model", "model/model.pb");
+		assertArrayEquals(graph, Files.readAllBytes(graphFile.toPath()));
+		assertTrue(service.verifyModel("model"));
+	}
+
+	@Test
+	public void testConcurrentLoad() throws Exception {
+		// Record the threads downloading the model. A download is slow enough for
+		// the second thread to arrive during the install.
+		Set<Thread> downloaders = Collections.newSetFromMap(new ConcurrentHashMap<>());
+		FileLocation source = new FileLocation(zipFile) {
+
+			@Override
+			public URI getURI() {
+				downloaders.add(Thread.currentThread());
+				try {
+					Thread.sleep(500);
+				}
+				catch (InterruptedException exc) {
+					Thread.currentThread().interrupt();
+				}
+				return super.getURI();
+			}
+		};
+
+		CustomDownloadService service = context.service(CustomDownloadService.class);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			CyclicBarrier barrier = new CyclicBarrier(2);
+			List<Future<File>> files = new ArrayList<>();
+			for (String filePath : new String[] { "model/model.pb", "model/config.yml" }) {
+				files.add(executor.submit(() -> {
+					barrier.await();
+					return service.loadFile(source, "model", filePath);
+				}));
+			}
+
+			assertArrayEquals(graph, Files.readAllBytes(files.get(0).get().toPath()));
+			assertArrayEquals(config, Files.readAllBytes(files.get(1).get().toPath()));
+		}
+		finally {
+			executor.shutdownNow();
+		}
+
+		// The second thread waited for the install of the first one.
+		assertEquals(1, downloaders.size());
+	}
+
+	@Before
+	public void createModel() throws IOException {
+		// A few MB of random data so the copy takes several chunks.
+		graph = new byte[3 * 1024 * 1024 + 17];
+		new Random(42).nextBytes(graph);
+		config = "IMAGE_MAX_DIM: 512\n".getBytes("UTF-8");
+
+		zipFile = folder.newFile("model.zip");
+		try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zipFile))) {
+			zos.putNextEntry(new ZipEntry("model/"));
+			zos.putNextEntry(new ZipEntry("model/model.pb"));
+			zos.write(graph);
+			zos.putNextEntry(new ZipEntry("model/config.yml"));
+			zos.write(config);
+		}
+	}
+
+}
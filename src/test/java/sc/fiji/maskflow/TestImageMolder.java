@@ -0,0 +1,140 @@
+
+package sc.fiji.maskflow;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.tensorflow.DataType;
+import org.tensorflow.Tensor;
+
+import net.imglib2.img.array.ArrayImgs;
+import sc.fiji.maskflow.internal.ImageMolder;
+import sc.fiji.maskflow.internal.ModelConfig;
+import sc.fiji.maskflow.internal.TensorScope;
+
+/**
+ * Values computed by hand with the square mode of resize_image() and
+ * compose_image_meta() from the Matterport implementation.
+ */
+public class TestImageMolder {
+
+	private static final float[] MEAN_PIXEL = { 1, 2, 3 };
+
+	@Test
+	public void testScale() {
+		// The 3 x 4 image is scaled by 8 / 3 to reach IMAGE_MIN_DIM and the
+		// rounded size 11 x 8 fits in IMAGE_MAX_DIM.
+		Map<String, Tensor<?>> outputs = this.mold(4, 3, 8, 16);
+		try (TensorScope scope = new TensorScope()) {
+			scope.trackAll(outputs.values());
+			assertArrayEquals(new int[] { 4, 2, 12, 13 }, this.getWindow(outputs));
+			assertEquals(8.0 / 3, this.getMetadata(outputs)[11], 1e-6);
+		}
+
+		// The 10 x 3 image would be 27 pixels wide so it is limited by
+		// IMAGE_MAX_DIM: the scale is 1.6 and the height 4.8 is rounded to 5.
+		outputs = this.mold(10, 3, 8, 16);
+		try (TensorScope scope = new TensorScope()) {
+			scope.trackAll(outputs.values());
+			assertArrayEquals(new int[] { 5, 0, 10, 16 }, this.getWindow(outputs));
+			assertEquals(1.6, this.getMetadata(outputs)[11], 1e-6);
+		}
+	}
+
+	@Test
+	public void testMetadata() {
+		Map<String, Tensor<?>> outputs = this.mold(6, 4, 8, 16);
+		try (TensorScope scope = new TensorScope()) {
+			scope.trackAll(outputs.values());
+
+			// Image id, original shape, molded shape, window, scale and the active
+			// class ids of the 2 classes.
+			float[] expected = { 0, 4, 6, 3, 16, 16, 3, 4, 2, 12, 14, 2, 0, 0 };
+			assertArrayEquals(expected, this.getMetadata(outputs), 0);
+			assertArrayEquals(new int[] { 4, 2, 12, 14 }, this.getWindow(outputs));
+			assertArrayEquals(new long[] { 16, 16, 3 }, outputs.get("moldedImage").shape());
+		}
+	}
+
+	@Test
+	public void testPixels() {
+		// A 2 x 1 image scaled by 8 to 16 x 8, padded by 4 rows at the top and
+		// at the bottom.
+		ModelConfig config = this.createConfig(8, 16);
+		ImageMolder molder = new ImageMolder(config, DataType.INT32);
+		Map<String, Tensor<?>> outputs = molder.mold(ArrayImgs.floats(new float[] { 10, 18 }, 2,
+			1));
+		try (TensorScope scope = new TensorScope()) {
+			scope.trackAll(outputs.values());
+
+			float[] molded = this.getMoldedImage(outputs);
+			assertArrayEquals(new int[] { 4, 0, 12, 16 }, this.getWindow(outputs));
+
+			// Bilinear resize without aligned corners: source x = x / 8.
+			float[] row = new float[16];
+			for (int x = 0; x < 16; x++) {
+				row[x] = x < 8 ? 10 + x : 18;
+			}
+
+			for (int y = 0; y < 16; y++) {
+				for (int x = 0; x < 16; x++) {
+					for (int c = 0; c < 3; c++) {
+						float value = y >= 4 && y < 12 ? row[x] : 0;
+						assertEquals("Pixel " + x + ", " + y + ", " + c, value - MEAN_PIXEL[c],
+							molded[(y * 16 + x) * 3 + c], 1e-5);
+					}
+				}
+			}
+		}
+	}
+
+	// -- Helper methods --
+
+	private Map<String, Tensor<?>> mold(int width, int height, int minDim, int maxDim) {
+		ImageMolder molder = new ImageMolder(this.createConfig(minDim, maxDim), DataType.INT32);
+		return molder.mold(ArrayImgs.floats(new float[width * height], width, height));
+	}
+
+	private float[] getMetadata(Map<String, Tensor<?>> outputs) {
+		Tensor<?> metadata = outputs.get("imageMetadata");
+		float[] values = new float[(int) metadata.shape()[0]];
+		metadata.copyTo(values);
+		return values;
+	}
+
+	private int[] getWindow(Map<String, Tensor<?>> outputs) {
+		int[] window = new int[4];
+		outputs.get("windows").copyTo(window);
+		return window;
+	}
+
+	@SuppressWarnings("unchecked")
+	private float[] getMoldedImage(Map<String, Tensor<?>> outputs) {
+		Tensor<Float> molded = (Tensor<Float>) outputs.get("moldedImage");
+		FloatBuffer buffer = FloatBuffer.allocate(molded.numElements());
+		molded.writeTo(buffer);
+		return buffer.array();
+	}
+
+	private ModelConfig createConfig(int minDim, int maxDim) {
+		// As read by SnakeYAML.
+		Map<String, Object> parameters = new HashMap<>();
+		parameters.put("CLASS_NAMES", Arrays.asList("object"));
+		parameters.put("IMAGE_MIN_DIM", minDim);
+		parameters.put("IMAGE_MAX_DIM", maxDim);
+		parameters.put("IMAGE_MIN_SCALE", 0);
+		parameters.put("MEAN_PIXEL", Arrays.asList(1.0, 2.0, 3.0));
+		parameters.put("BACKBONE_STRIDES", Arrays.asList(4, 8, 16, 32, 64));
+		parameters.put("RPN_ANCHOR_SCALES", Arrays.asList(8, 16, 32, 64, 128));
+		parameters.put("RPN_ANCHOR_RATIOS", Arrays.asList(0.5, 1, 2));
+		parameters.put("RPN_ANCHOR_STRIDE", 1);
+		return new ModelConfig(parameters);
+	}
+
+}
@@ -0,0 +1,237 @@
+
+package sc.fiji.maskflow;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import sc.fiji.maskflow.internal.CompactMask;
+import sc.fiji.maskflow.internal.Detection;
+import sc.fiji.maskflow.internal.N5LabelWriter;
+
+/**
+ * The chunk loop of {@link MaskflowEngine} with a stub detection, feeding the
+ * writer of {@link LargeStackObjectsDetector}.
+ */
+public class TestLargeStackWriter {
+
+	private static final int WIDTH = 64;
+	private static final int HEIGHT = 64;
+	private static final int SIZE = 5;
+	private static final String HEADER =
+		"id,frame,class_id,class_label,score,x,y,width,height";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testChunks() throws Exception {
+		// 8 frames in chunks of 3 frames: the last chunk has 2 frames. Frames 0
+		// and 4 are empty so the header comes with the rows of frame 1 and a track
+		// crosses a chunk boundary with a gap.
+		Img<FloatType> stack = this.createStack(8);
+		List<Long> chunkSizes = new ArrayList<>();
+		List<Integer> frames = new ArrayList<>();
+
+		Path root = folder.getRoot().toPath().resolve("movie-masks.n5");
+		N5LabelWriter labels = new N5LabelWriter(root, "labels", WIDTH, HEIGHT, 8);
+		StringWriter csv = new StringWriter();
+		LargeStackWriter writer = new LargeStackWriter(this::createTable, csv, labels,
+			new OnlineObjectsTracker(5.0, 10.0, 3), WIDTH, HEIGHT);
+
+		MaskflowEngine.forEachChunk(stack, 3, chunk -> {
+			chunkSizes.add(chunk.dimension(2));
+			return this.predict(chunk);
+		}, (frame, detections) -> {
+			frames.add(frame);
+			for (Detection detection : detections) {
+				assertEquals(frame, detection.getFrame());
+			}
+			writer.accept(frame, detections);
+		});
+		writer.finish();
+
+		assertEquals(Arrays.asList(3L, 3L, 2L), chunkSizes);
+		assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7), frames);
+		assertEquals(12, writer.getCount());
+
+		// Ids continue across chunks and object ids follow the objects.
+		StringBuilder expected = new StringBuilder(HEADER + ",object_id\n");
+		int id = 0;
+		for (int frame : new int[] { 1, 2, 3, 5, 6, 7 }) {
+			for (int object : this.getObjects(frame)) {
+				expected.append(id++ + "," + frame + ",1,object,0.9," + this.getX(object, frame) +
+					"," + this.getY(object) + "," + SIZE + "," + SIZE + "," + object + "\n");
+			}
+		}
+		assertEquals(expected.toString(), csv.toString());
+
+		// Masks are labelled with their object ids + 1.
+		assertFalse(Files.exists(root.resolve("labels/0/0/0")));
+		assertFalse(Files.exists(root.resolve("labels/0/0/4")));
+		int[] frame3 = this.readLabels(root.resolve("labels/0/0/3"));
+		assertEquals(1, frame3[this.getY(0) * WIDTH + this.getX(0, 3)]);
+		assertEquals(2, frame3[this.getY(1) * WIDTH + this.getX(1, 3)]);
+		assertEquals(0, frame3[0]);
+	}
+
+	@Test
+	public void testNoDetections() throws Exception {
+		Path root = folder.getRoot().toPath().resolve("movie-masks.n5");
+		N5LabelWriter labels = new N5LabelWriter(root, "labels", WIDTH, HEIGHT, 5);
+		StringWriter csv = new StringWriter();
+		LargeStackWriter writer = new LargeStackWriter(this::createTable, csv, labels,
+			new OnlineObjectsTracker(5.0, 10.0, 3), WIDTH, HEIGHT);
+
+		List<Integer> frames = new ArrayList<>();
+		MaskflowEngine.forEachChunk(this.createStack(5), 2, chunk -> {
+			List<List<Detection>> detections = new ArrayList<>();
+			for (int i = 0; i < chunk.dimension(2); i++) {
+				detections.add(Collections.emptyList());
+			}
+			return detections;
+		}, (frame, detections) -> {
+			frames.add(frame);
+			writer.accept(frame, detections);
+		});
+		writer.finish();
+
+		// The header has no tracking column since no rows have been tracked.
+		assertEquals(Arrays.asList(0, 1, 2, 3, 4), frames);
+		assertEquals(0, writer.getCount());
+		assertEquals(HEADER + "\n", csv.toString());
+	}
+
+	@Test
+	public void testWithoutTracking() throws Exception {
+		// A 2D image is a single chunk of a single frame.
+		Path root = folder.getRoot().toPath().resolve("image-masks.n5");
+		N5LabelWriter labels = new N5LabelWriter(root, "labels", WIDTH, HEIGHT, 1);
+		StringWriter csv = new StringWriter();
+		LargeStackWriter writer = new LargeStackWriter(this::createTable, csv, labels, null, WIDTH,
+			HEIGHT);
+
+		MaskflowEngine.forEachChunk(ArrayImgs.floats(WIDTH, HEIGHT), 3, chunk -> Collections
+			.singletonList(Arrays.asList(this.createDetection(1, 0, 2), this.createDetection(0, 0,
+				2))), writer);
+		writer.finish();
+
+		assertEquals(HEADER + "\n0,0,1,object,0.9," + this.getX(1, 2) + "," + this.getY(1) +
+			",5,5\n1,0,1,object,0.9," + this.getX(0, 2) + "," + this.getY(0) + ",5,5\n", csv
+				.toString());
+
+		// Masks are labelled with their ids + 1.
+		int[] frame0 = this.readLabels(root.resolve("labels/0/0/0"));
+		assertEquals(1, frame0[this.getY(1) * WIDTH + this.getX(1, 2)]);
+		assertEquals(2, frame0[this.getY(0) * WIDTH + this.getX(0, 2)]);
+	}
+
+	// -- Helper methods --
+
+	/** A stack whose first pixel is the frame so chunks can be checked. */
+	private Img<FloatType> createStack(int frames) {
+		Img<FloatType> stack = ArrayImgs.floats(WIDTH, HEIGHT, frames);
+		RandomAccess<FloatType> ra = stack.randomAccess();
+		for (int frame = 0; frame < frames; frame++) {
+			ra.setPosition(new long[] { 0, 0, frame });
+			ra.get().set(frame);
+		}
+		return stack;
+	}
+
+	/**
+	 * Detect two objects moving by one pixel per frame, with their frames in the
+	 * chunk like the engine.
+	 */
+	private List<List<Detection>> predict(RandomAccessibleInterval<? extends RealType<?>> chunk) {
+		assertEquals(0, chunk.min(2));
+		RandomAccess<? extends RealType<?>> ra = chunk.randomAccess();
+		List<List<Detection>> detections = new ArrayList<>();
+		for (int i = 0; i < chunk.dimension(2); i++) {
+			ra.setPosition(new long[] { 0, 0, i });
+			int frame = (int) ra.get().getRealDouble();
+
+			List<Detection> frameDetections = new ArrayList<>();
+			for (int object : this.getObjects(frame)) {
+				frameDetections.add(this.createDetection(object, i, frame));
+			}
+			detections.add(frameDetections);
+		}
+		return detections;
+	}
+
+	/** The objects of a frame, listed in a different order in even frames. */
+	private int[] getObjects(int frame) {
+		if (frame == 0 || frame == 4) {
+			return new int[0];
+		}
+		return frame % 2 == 1 ? new int[] { 0, 1 } : new int[] { 1, 0 };
+	}
+
+	private int getX(int object, int frame) {
+		return 10 + 30 * object + frame;
+	}
+
+	private int getY(int object) {
+		return 10 + 30 * object;
+	}
+
+	private Detection createDetection(int object, int chunkFrame, int frame) {
+		float[] values = new float[SIZE * SIZE];
+		Arrays.fill(values, 1);
+		CompactMask mask = CompactMask.create(this.getX(object, frame), this.getY(object), SIZE,
+			SIZE, values, 0, SIZE, false);
+		return new Detection(chunkFrame, 1, 0.9f, mask);
+	}
+
+	private DetectionTable createTable(List<Detection> detections) {
+		DetectionTable table = new DetectionTable();
+		for (Detection detection : detections) {
+			table.addRow(detection.getFrame(), detection.getClassId(), "object", detection
+				.getScore(), detection.getX(), detection.getY(), detection.getWidth(), detection
+					.getHeight());
+		}
+		return table;
+	}
+
+	private int[] readLabels(Path block) throws IOException {
+		try (InputStream file = Files.newInputStream(block);
+				DataInputStream input = new DataInputStream(file))
+		{
+			assertEquals(0, input.readShort());
+			assertEquals(3, input.readShort());
+			assertArrayEquals(new int[] { WIDTH, HEIGHT, 1 }, new int[] { input.readInt(), input
+				.readInt(), input.readInt() });
+
+			DataInputStream data = new DataInputStream(new GZIPInputStream(file));
+			int[] labels = new int[WIDTH * HEIGHT];
+			for (int i = 0; i < labels.length; i++) {
+				labels[i] = data.readInt();
+			}
+			return labels;
+		}
+	}
+
+}
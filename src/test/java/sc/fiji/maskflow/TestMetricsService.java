@@ -0,0 +1,60 @@
+
+package sc.fiji.maskflow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.scijava.table.GenericTable;
+
+import sc.fiji.maskflow.internal.Histogram;
+
+public class TestMetricsService extends AbstractTest {
+
+	@Test
+	public void testDisabled() {
+		MetricsService metrics = context.service(MetricsService.class);
+		metrics.setEnabled(false);
+
+		assertEquals(0, metrics.start());
+		metrics.stop(MetricsService.PREPROCESS, System.nanoTime());
+		metrics.record(MetricsService.OBJECTS_PER_FRAME, 3);
+		metrics.count(MetricsService.FRAMES, 1);
+
+		assertNull(metrics.getHistogram(MetricsService.PREPROCESS));
+		assertNull(metrics.getHistogram(MetricsService.OBJECTS_PER_FRAME));
+		assertEquals(0, metrics.getCounter(MetricsService.FRAMES));
+	}
+
+	@Test
+	public void testReport() {
+		MetricsService metrics = context.service(MetricsService.class);
+		metrics.setEnabled(true);
+
+		metrics.stop(MetricsService.DETECT, metrics.start());
+		for (int i = 1; i <= 100; i++) {
+			metrics.record(MetricsService.OBJECTS_PER_FRAME, i);
+		}
+		metrics.count(MetricsService.FRAMES, 100);
+
+		Histogram objects = metrics.getHistogram(MetricsService.OBJECTS_PER_FRAME);
+		assertEquals(100, objects.getCount());
+		assertEquals(1, objects.getMin());
+		assertEquals(100, objects.getMax());
+		assertEquals(50.5, objects.getMean(), 1e-9);
+		assertEquals(50, objects.getQuantile(0.5), 50 * 0.125);
+		assertEquals(99, objects.getQuantile(0.99), 99 * 0.125);
+
+		GenericTable table = metrics.toTable();
+		assertEquals(3, table.getRowCount());
+
+		String json = metrics.toJson();
+		assertTrue(json.contains("\"objects_per_frame\": {\"unit\": \"\", \"count\": 100"));
+		assertTrue(json.contains("\"frames\": 100"));
+
+		metrics.reset();
+		assertEquals(0, metrics.toTable().getRowCount());
+	}
+
+}
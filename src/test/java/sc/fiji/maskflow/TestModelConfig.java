@@ -0,0 +1,60 @@
+
+package sc.fiji.maskflow;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import sc.fiji.maskflow.internal.ModelConfig;
+
+public class TestModelConfig {
+
+	@Test
+	public void testParameters() {
+		ModelConfig config = new ModelConfig(this.createParameters());
+
+		assertEquals(Arrays.asList("microtubule"), config.getClassNames());
+		assertEquals(2, config.getNumClasses());
+		assertEquals(512, config.getImageMaxDim());
+		assertEquals(0f, config.getImageMinScale(), 0);
+		assertArrayEquals(new float[] { 123.7f, 116.8f, 103.9f }, config.getMeanPixel(), 1e-6f);
+		assertArrayEquals(new int[] { 4, 8, 16, 32, 64 }, config.getBackboneStrides());
+		assertArrayEquals(new float[] { 0.5f, 1f, 2f }, config.getRpnAnchorRatios(), 0);
+		assertEquals(1, config.getBatchSize());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMissingParameter() {
+		Map<String, Object> parameters = this.createParameters();
+		parameters.remove("RPN_ANCHOR_SCALES");
+		new ModelConfig(parameters);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidParameter() {
+		Map<String, Object> parameters = this.createParameters();
+		parameters.put("BACKBONE_STRIDES", Arrays.asList(4.5, 8));
+		new ModelConfig(parameters);
+	}
+
+	private Map<String, Object> createParameters() {
+		// As read by SnakeYAML.
+		Map<String, Object> parameters = new HashMap<>();
+		parameters.put("CLASS_NAMES", Arrays.asList("microtubule"));
+		parameters.put("IMAGE_MIN_DIM", 512);
+		parameters.put("IMAGE_MAX_DIM", 512);
+		parameters.put("IMAGE_MIN_SCALE", 0);
+		parameters.put("MEAN_PIXEL", Arrays.asList(123.7, 116.8, 103.9));
+		parameters.put("BACKBONE_STRIDES", Arrays.asList(4, 8, 16, 32, 64));
+		parameters.put("RPN_ANCHOR_SCALES", Arrays.asList(8, 16, 32, 64, 128));
+		parameters.put("RPN_ANCHOR_RATIOS", Arrays.asList(0.5, 1, 2));
+		parameters.put("RPN_ANCHOR_STRIDE", 1);
+		return parameters;
+	}
+
+}
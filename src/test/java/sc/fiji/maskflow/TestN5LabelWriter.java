@@ -0,0 +1,62 @@
+
+package sc.fiji.maskflow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import sc.fiji.maskflow.internal.CompactMask;
+import sc.fiji.maskflow.internal.N5LabelWriter;
+
+public class TestN5LabelWriter {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testWriteFrame() throws IOException {
+		Path root = folder.getRoot().toPath().resolve("movie-masks.n5");
+		N5LabelWriter writer = new N5LabelWriter(root, "labels", 4, 3, 2);
+
+		float[] values = new float[4];
+		Arrays.fill(values, 1);
+		CompactMask first = CompactMask.create(0, 0, 2, 2, values, 0, 2, false);
+		CompactMask second = CompactMask.create(3, 1, 1, 2, values, 0, 1, false);
+		writer.writeFrame(1, Arrays.asList(first, second), new int[] { 1, 5 });
+		writer.writeFrame(0, Collections.emptyList(), new int[0]);
+
+		assertTrue(Files.exists(root.resolve("attributes.json")));
+		assertTrue(Files.exists(root.resolve("labels").resolve("attributes.json")));
+		assertFalse(Files.exists(root.resolve("labels/0/0/0")));
+
+		try (InputStream file = Files.newInputStream(root.resolve("labels/0/0/1"));
+				DataInputStream input = new DataInputStream(file))
+		{
+			assertEquals(0, input.readShort());
+			assertEquals(3, input.readShort());
+			assertEquals(4, input.readInt());
+			assertEquals(3, input.readInt());
+			assertEquals(1, input.readInt());
+
+			DataInputStream data = new DataInputStream(new GZIPInputStream(file));
+			int[] expected = new int[] { 1, 1, 0, 0, 1, 1, 0, 5, 0, 0, 0, 5 };
+			for (int label : expected) {
+				assertEquals(label, data.readInt());
+			}
+		}
+	}
+
+}
@@ -0,0 +1,172 @@
+
+package sc.fiji.maskflow;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+import org.jgrapht.graph.SimpleWeightedGraph;
+import org.junit.Test;
+import org.scijava.command.CommandModule;
+
+import fiji.plugin.trackmate.Spot;
+import net.imagej.Dataset;
+import net.imagej.DatasetService;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+
+public class TestObjectsTracker extends AbstractTest {
+
+	private static final int WIDTH = 200;
+	private static final int HEIGHT = 150;
+	private static final int FRAMES = 10;
+	private static final int RADIUS = 4;
+	private static final int OBJECTS = 12;
+
+	@Test
+	public void testMultiThreadedTrackingIsDeterministic() throws InterruptedException,
+		ExecutionException
+	{
+		List<double[]> objects = this.createObjects();
+		Dataset masks = this.createMasks(objects);
+
+		DetectionTable singleThread = this.track(masks, this.createTable(objects), 1,
+			ObjectsTracker.DISTANCE_COST);
+		DetectionTable multiThread = this.track(masks, this.createTable(objects), 4,
+			ObjectsTracker.DISTANCE_COST);
+
+		int n = objects.size();
+		assertEquals(n, singleThread.getRowCount());
+		assertArrayEquals(Arrays.copyOf(singleThread.getObjectIds(), n), Arrays.copyOf(multiThread
+			.getObjectIds(), n));
+
+		// Objects have been linked.
+		long nTracks = Arrays.stream(singleThread.getObjectIds(), 0, n).distinct().count();
+		assertTrue(nTracks >= OBJECTS && nTracks < n);
+	}
+
+	@Test
+	public void testOverlapLinking() throws InterruptedException, ExecutionException {
+		List<double[]> objects = this.createObjects();
+		Dataset masks = this.createMasks(objects);
+
+		for (String cost : new String[] { ObjectsTracker.BOX_OVERLAP_COST,
+			ObjectsTracker.MASK_OVERLAP_COST })
+		{
+			DetectionTable singleThread = this.track(masks, this.createTable(objects), 1, cost);
+			DetectionTable multiThread = this.track(masks, this.createTable(objects), 4, cost);
+
+			int n = objects.size();
+			assertArrayEquals(Arrays.copyOf(singleThread.getObjectIds(), n), Arrays.copyOf(
+				multiThread.getObjectIds(), n));
+
+			long nTracks = Arrays.stream(singleThread.getObjectIds(), 0, n).distinct().count();
+			assertTrue(nTracks >= OBJECTS && nTracks < n);
+		}
+	}
+
+	@Test
+	public void testTrackNumbering() {
+		// Rows 0-2 are in frame 0, rows 3-4 in frame 1 and row 5 in frame 2. Rows 1
+		// and 3 are linked before rows 0 and 4, and spots are added in reverse
+		// order, so the graph does not iterate in table order.
+		Spot[] spots = new Spot[6];
+		SimpleWeightedGraph<Spot, DefaultWeightedEdge> graph = new SimpleWeightedGraph<>(
+			DefaultWeightedEdge.class);
+		for (int row = spots.length - 1; row >= 0; row--) {
+			spots[row] = new Spot(row, row, 0, 1, 1);
+			spots[row].getFeatures().put("ID", (double) row);
+			graph.addVertex(spots[row]);
+		}
+		graph.addEdge(spots[1], spots[3]);
+		graph.addEdge(spots[4], spots[0]);
+
+		// Linked tracks are numbered by their first row, then the unlinked spots
+		// in table order.
+		assertArrayEquals(new int[] { 0, 1, 2, 1, 0, 3 }, ObjectsTracker.buildTracks(graph,
+			spots.length));
+	}
+
+	/** Objects on a grid moving randomly, some of them missing in a few frames. */
+	private List<double[]> createObjects() {
+		List<double[]> objects = new ArrayList<>();
+		Random random = new Random(42);
+		double[][] positions = new double[OBJECTS][];
+		for (int i = 0; i < positions.length; i++) {
+			positions[i] = new double[] { 40 + 40 * (i % 4), 35 + 40 * (i / 4) };
+		}
+		for (int frame = 0; frame < FRAMES; frame++) {
+			for (double[] position : positions) {
+				position[0] += 3 * random.nextDouble() - 1.5;
+				position[1] += 3 * random.nextDouble() - 1.5;
+				if (random.nextDouble() > 0.1) {
+					objects.add(new double[] { frame, position[0], position[1] });
+				}
+			}
+		}
+		return objects;
+	}
+
+	private DetectionTable track(Dataset masks, DetectionTable table, int numThreads,
+		String linkingCost) throws InterruptedException, ExecutionException
+	{
+		Map<String, Object> inputs = new HashMap<>();
+		inputs.put("linkingCost", linkingCost);
+		inputs.put("masks", masks);
+		inputs.put("table", table);
+		inputs.put("linkingMaxDistance", 6.0);
+		inputs.put("gapClosingMaxDistance", 10.0);
+		inputs.put("maxFrameGap", 3);
+		inputs.put("fillROIManager", false);
+		inputs.put("numThreads", numThreads);
+		CommandModule module = command.run(ObjectsTracker.class, true, inputs).get();
+		return (DetectionTable) module.getOutput("resultTable");
+	}
+
+	private DetectionTable createTable(List<double[]> objects) {
+		DetectionTable table = new DetectionTable();
+		for (double[] object : objects) {
+			table.addRow((int) object[0], 1, "object", 1, (int) object[1] - RADIUS, (int) object[2] -
+				RADIUS, 2 * RADIUS + 1, 2 * RADIUS + 1);
+		}
+		return table;
+	}
+
+	private Dataset createMasks(List<double[]> objects) {
+		Img<FloatType> img = ArrayImgs.floats(WIDTH, HEIGHT, objects.size());
+		RandomAccess<FloatType> ra = img.randomAccess();
+		for (int i = 0; i < objects.size(); i++) {
+			int cx = (int) objects.get(i)[1];
+			int cy = (int) objects.get(i)[2];
+			ra.setPosition(i, 2);
+			for (int y = cy - RADIUS; y <= cy + RADIUS; y++) {
+				for (int x = cx - RADIUS; x <= cx + RADIUS; x++) {
+					if ((x - cx) * (x - cx) + (y - cy) * (y - cy) <= RADIUS * RADIUS) {
+						ra.setPosition(x, 0);
+						ra.setPosition(y, 1);
+						ra.get().set(1);
+					}
+				}
+			}
+		}
+
+		AxisType[] axisTypes = new AxisType[] { Axes.X, Axes.Y, Axes.TIME };
+		DatasetService ds = context.service(DatasetService.class);
+		return ds.create(new ImgPlus<>(img, "masks", axisTypes));
+	}
+
+}
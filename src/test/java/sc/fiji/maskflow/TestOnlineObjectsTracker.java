@@ -0,0 +1,143 @@
+
+package sc.fiji.maskflow;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+
+public class TestOnlineObjectsTracker {
+
+	private static final int WIDTH = 200;
+	private static final int HEIGHT = 150;
+	private static final int RADIUS = 4;
+
+	@Test
+	public void testMovingDisks() {
+		OnlineObjectsTracker tracker = new OnlineObjectsTracker(6.0, 10.0, 3);
+
+		// Three disks moving by 2 pixels per frame, listed in a different order in
+		// every other frame.
+		for (int frame = 0; frame < 10; frame++) {
+			double[][] disks = new double[3][];
+			for (int i = 0; i < 3; i++) {
+				disks[i] = new double[] { 40 + 2 * frame, 30 + 40 * i };
+			}
+			int[] expected = new int[] { 0, 1, 2 };
+			if (frame % 2 == 1) {
+				disks = new double[][] { disks[2], disks[0], disks[1] };
+				expected = new int[] { 2, 0, 1 };
+			}
+
+			DetectionTable table = this.createTable(frame, disks);
+			int[] objectIDs = tracker.addFrame(frame, this.createMasks(disks), table);
+			assertArrayEquals("Frame " + frame, expected, objectIDs);
+			for (int row = 0; row < table.getRowCount(); row++) {
+				assertEquals(expected[row], table.getObjectId(row));
+			}
+		}
+		assertEquals(3, tracker.getObjectCount());
+		assertEquals(3, tracker.getActiveTrackCount());
+	}
+
+	@Test
+	public void testGapClosing() {
+		OnlineObjectsTracker tracker = new OnlineObjectsTracker(5.0, 10.0, 3);
+
+		assertArrayEquals(new int[] { 0, 1 }, this.addFrame(tracker, 0, 10, 10, 50, 50));
+		assertArrayEquals(new int[] { 0 }, this.addFrame(tracker, 1, 11, 10));
+		assertArrayEquals(new int[] { 0 }, this.addFrame(tracker, 2, 12, 10));
+
+		// The second object has not been seen for maxFrameGap frames and leaves
+		// the window.
+		assertArrayEquals(new int[0], this.addFrame(tracker, 3));
+		assertEquals(1, tracker.getActiveTrackCount());
+		assertArrayEquals(new int[] { 2 }, this.addFrame(tracker, 4, 50, 50));
+		assertEquals(2, tracker.getActiveTrackCount());
+
+		// The first object comes back maxFrameGap frames later, further than the
+		// linking distance but closer than the gap closing distance.
+		assertArrayEquals(new int[] { 0, 2 }, this.addFrame(tracker, 5, 18, 10, 51, 50));
+
+		// A longer gap starts a new track.
+		assertArrayEquals(new int[] { 3 }, this.addFrame(tracker, 9, 19, 10));
+		assertEquals(4, tracker.getObjectCount());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testFrameOrder() {
+		OnlineObjectsTracker tracker = new OnlineObjectsTracker(5.0, 10.0, 3);
+		this.addFrame(tracker, 2, 10, 10);
+		this.addFrame(tracker, 2, 11, 10);
+	}
+
+	@Test
+	public void testBoundedState() {
+		int maxFrameGap = 3;
+		OnlineObjectsTracker tracker = new OnlineObjectsTracker(5.0, 10.0, maxFrameGap);
+
+		// Three objects present in every frame and two new objects per frame which
+		// are never linked.
+		int frames = 2000;
+		for (int frame = 0; frame < frames; frame++) {
+			int shift = frame % 2;
+			int[] objectIDs = this.addFrame(tracker, frame, 20 + shift, 20, 60 + shift, 20, 100 +
+				shift, 20, 1000 * frame, 500, 1000 * frame + 100, 500);
+			assertArrayEquals(new int[] { 0, 1, 2 }, new int[] { objectIDs[0], objectIDs[1],
+				objectIDs[2] });
+			assertTrue(tracker.getActiveTrackCount() <= 3 + 2 * maxFrameGap);
+		}
+
+		// Provisional ids are given in order and never reused.
+		assertEquals(3 + 2 * frames, tracker.getObjectCount());
+	}
+
+	// -- Helper methods --
+
+	/** Add a frame from the x, y positions of its objects. */
+	private int[] addFrame(OnlineObjectsTracker tracker, int frame, double... positions) {
+		double[] x = new double[positions.length / 2];
+		double[] y = new double[positions.length / 2];
+		for (int i = 0; i < x.length; i++) {
+			x[i] = positions[2 * i];
+			y[i] = positions[2 * i + 1];
+		}
+		return tracker.addFrame(frame, x, y);
+	}
+
+	private DetectionTable createTable(int frame, double[][] disks) {
+		DetectionTable table = new DetectionTable();
+		for (double[] disk : disks) {
+			table.addRow(frame, 1, "object", 1, (int) disk[0] - RADIUS, (int) disk[1] - RADIUS, 2 *
+				RADIUS + 1, 2 * RADIUS + 1);
+		}
+		return table;
+	}
+
+	private Img<FloatType> createMasks(double[][] disks) {
+		Img<FloatType> img = ArrayImgs.floats(WIDTH, HEIGHT, disks.length);
+		RandomAccess<FloatType> ra = img.randomAccess();
+		for (int i = 0; i < disks.length; i++) {
+			int cx = (int) disks[i][0];
+			int cy = (int) disks[i][1];
+			ra.setPosition(i, 2);
+			for (int y = cy - RADIUS; y <= cy + RADIUS; y++) {
+				for (int x = cx - RADIUS; x <= cx + RADIUS; x++) {
+					if ((x - cx) * (x - cx) + (y - cy) * (y - cy) <= RADIUS * RADIUS) {
+						ra.setPosition(x, 0);
+						ra.setPosition(y, 1);
+						ra.get().set(1);
+					}
+				}
+			}
+		}
+		return img;
+	}
+
+}
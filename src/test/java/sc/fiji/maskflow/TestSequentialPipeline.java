@@ -0,0 +1,132 @@
+
+package sc.fiji.maskflow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Test;
+
+import sc.fiji.maskflow.internal.SequentialPipeline;
+
+public class TestSequentialPipeline {
+
+	@Test
+	public void testOrder() throws Exception {
+		SequentialPipeline<Integer, Integer, Integer> pipeline = new SequentialPipeline<>(7, 3, 2,
+			true, i -> i, (worker, values) -> new ArrayList<>(values), (position, value) -> value *
+				10, value -> {}, value -> {});
+
+		List<Integer> results = pipeline.run(20);
+		assertEquals(20, results.size());
+		for (int i = 0; i < 20; i++) {
+			assertEquals(i * 10, (int) results.get(i));
+		}
+	}
+
+	@Test
+	public void testReleaseOnPreprocessingFailure() throws Exception {
+		this.runFailing(17, -1, -1);
+	}
+
+	@Test
+	public void testReleaseOnDetectionFailure() throws Exception {
+		this.runFailing(-1, 10, -1);
+	}
+
+	@Test
+	public void testReleaseOnPostprocessingFailure() throws Exception {
+		this.runFailing(-1, -1, 30);
+	}
+
+	@Test
+	public void testGroups() throws Exception {
+		// Frames of a group are postprocessed before the next group is
+		// preprocessed.
+		Set<Integer> alive = Collections.newSetFromMap(new ConcurrentHashMap<>());
+		int[] maxAlive = new int[] { 0 };
+		SequentialPipeline<Integer, Integer, Integer> pipeline = new SequentialPipeline<>(4, 3, 2,
+			true, i -> {
+				alive.add(i);
+				synchronized (maxAlive) {
+					maxAlive[0] = Math.max(maxAlive[0], alive.size());
+				}
+				return i;
+			}, (worker, values) -> new ArrayList<>(values), (position, value) -> {
+				alive.remove(value);
+				return value;
+			}, value -> {}, value -> {});
+
+		List<Integer> results = pipeline.run(18);
+		for (int i = 0; i < 18; i++) {
+			assertEquals(i, (int) results.get(i));
+		}
+		assertTrue(alive.isEmpty());
+		assertEquals(4, maxAlive[0]);
+	}
+
+	// -- Helper methods --
+
+	/**
+	 * Run 50 frames in groups of 20, failing the given stage on the given frame.
+	 */
+	private void runFailing(int preprocessingFailure, int detectionFailure,
+		int postprocessingFailure) throws InterruptedException
+	{
+		Set<Integer> created = Collections.newSetFromMap(new ConcurrentHashMap<>());
+		Set<Integer> consumed = Collections.newSetFromMap(new ConcurrentHashMap<>());
+		Set<Integer> released = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+		// Frames are identified by their position. Detection results are negative.
+		SequentialPipeline<Integer, Integer, Integer> pipeline = new SequentialPipeline<>(20, 2,
+			2, true, i -> {
+				if (i == preprocessingFailure) {
+					throw new IllegalStateException("Preprocessing failed.");
+				}
+				created.add(i);
+				return i;
+			}, (worker, values) -> {
+				List<Integer> outputs = new ArrayList<>();
+				for (int value : values) {
+					consumed.add(value);
+					created.add(-value - 1);
+					outputs.add(-value - 1);
+				}
+				if (values.contains(detectionFailure)) {
+					// A failing stage releases its own inputs and outputs.
+					outputs.forEach(consumed::add);
+					throw new IllegalStateException("Detection failed.");
+				}
+				return outputs;
+			}, (position, value) -> {
+				consumed.add(value);
+				if (position == postprocessingFailure) {
+					throw new IllegalStateException("Postprocessing failed.");
+				}
+				return value;
+			}, released::add, released::add);
+
+		try {
+			pipeline.run(50);
+			fail("The failure of a stage is not reported.");
+		}
+		catch (ExecutionException exc) {
+			assertTrue(exc.getCause() instanceof IllegalStateException);
+		}
+
+		// Every frame is either consumed by a stage or released, once.
+		for (int value : created) {
+			assertTrue("Frame " + value + " leaked.", consumed.contains(value) ^ released.contains(
+				value));
+		}
+		assertEquals(created.size(), consumed.size() + released.size());
+	}
+
+}
@@ -0,0 +1,78 @@
+
+package sc.fiji.maskflow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Test;
+
+import sc.fiji.maskflow.internal.StreamingPipeline;
+
+public class TestStreamingPipeline {
+
+	@Test
+	public void testOrder() throws Exception {
+		StreamingPipeline<Integer, Integer, Integer> pipeline = new StreamingPipeline<>(2, 3, 2,
+			i -> i, (worker, values) -> new ArrayList<>(values), (position, value) -> value * 10);
+
+		List<Integer> results = pipeline.run(20);
+		assertEquals(20, results.size());
+		for (int i = 0; i < 20; i++) {
+			assertEquals(i * 10, (int) results.get(i));
+		}
+	}
+
+	@Test
+	public void testReleaseOnFailure() throws Exception {
+		Set<Integer> created = Collections.newSetFromMap(new ConcurrentHashMap<>());
+		Set<Integer> consumed = Collections.newSetFromMap(new ConcurrentHashMap<>());
+		Set<Integer> released = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+		// Frames are identified by their position. Detection results are negative.
+		StreamingPipeline<Integer, Integer, Integer> pipeline = new StreamingPipeline<>(2, 2, 2,
+			i -> {
+				created.add(i);
+				return i;
+			}, (worker, values) -> {
+				List<Integer> outputs = new ArrayList<>();
+				for (int value : values) {
+					consumed.add(value);
+					created.add(-value - 1);
+					outputs.add(-value - 1);
+				}
+				if (values.contains(10)) {
+					// A failing stage releases its own inputs and outputs.
+					outputs.forEach(consumed::add);
+					throw new IllegalStateException("Detection failed.");
+				}
+				return outputs;
+			}, (position, value) -> {
+				consumed.add(value);
+				return value;
+			}, released::add, released::add);
+
+		try {
+			pipeline.run(50);
+			fail("The failure of a stage is not reported.");
+		}
+		catch (ExecutionException exc) {
+			assertTrue(exc.getCause() instanceof IllegalStateException);
+		}
+
+		// Every frame is either consumed by a stage or released, once.
+		for (int value : created) {
+			assertTrue("Frame " + value + " leaked.", consumed.contains(value) ^ released.contains(
+				value));
+		}
+		assertEquals(created.size(), consumed.size() + released.size());
+	}
+
+}
@@ -0,0 +1,81 @@
+
+package sc.fiji.maskflow.manual;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import org.scijava.command.CommandModule;
+import org.scijava.io.location.FileLocation;
+import org.tensorflow.DataType;
+import org.tensorflow.Tensor;
+
+import net.imagej.Dataset;
+import net.imagej.ImageJ;
+import sc.fiji.maskflow.ModelService;
+import sc.fiji.maskflow.internal.ImageMolder;
+import sc.fiji.maskflow.internal.MaskRCNNPreprocessImage;
+import sc.fiji.maskflow.internal.ModelConfig;
+
+/** Compare the Java molding with the preprocessing graph. */
+public class TestImageMolder {
+
+	public static void main(String[] args) throws IOException {
+
+		final ImageJ ij = new ImageJ();
+
+		String modelPath = "/home/hadim/Drive/Data/Neural_Network/Maskflow/Microtubule/SavedModel/";
+		String model = modelPath + "microtubule-v0.1.zip";
+		String modelName = "microtubule-v0.1";
+
+		String basePath = "/home/hadim/Documents/Code/Postdoc/ij/testdata/";
+		String imagePath = basePath + "single-256x256.tif";
+
+		final Dataset dataset = (Dataset) ij.io().open(imagePath);
+		final FileLocation modelLocation = new FileLocation(new File(model));
+
+		try {
+
+			// Run the preprocessing graph.
+			Map<String, Object> inputs = new HashMap<>();
+			inputs.put("modelLocation", modelLocation);
+			inputs.put("modelName", modelName);
+			inputs.put("inputDataset", dataset);
+			CommandModule module = ij.command().run(MaskRCNNPreprocessImage.class, true, inputs).get();
+
+			// Run the Java molding.
+			ModelConfig config = ij.get(ModelService.class).getConfig(modelLocation, modelName);
+			Map<String, Tensor<?>> molded = new ImageMolder(config, DataType.INT32).mold(dataset);
+
+			for (String name : new String[] { "moldedImage", "imageMetadata", "anchors" }) {
+				Tensor<?> expected = (Tensor<?>) module.getOutput(name);
+				Tensor<?> actual = molded.get(name);
+				System.out.println(name + ": max abs. difference = " + maxDifference(expected, actual));
+			}
+		}
+		catch (InterruptedException | ExecutionException exc) {
+			exc.printStackTrace();
+		}
+
+		ij.context().dispose();
+	}
+
+	private static float maxDifference(Tensor<?> expected, Tensor<?> actual) {
+		if (expected.numElements() != actual.numElements()) {
+			return Float.POSITIVE_INFINITY;
+		}
+		FloatBuffer a = FloatBuffer.allocate(expected.numElements());
+		FloatBuffer b = FloatBuffer.allocate(actual.numElements());
+		expected.expect(Float.class).writeTo(a);
+		actual.expect(Float.class).writeTo(b);
+
+		float max = 0;
+		for (int i = 0; i < a.capacity(); i++) {
+			max = Math.max(max, Math.abs(a.get(i) - b.get(i)));
+		}
+		return max;
+	}
+}